@@ -0,0 +1,32 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.benchmarks;
+
+/**
+ * Builds exceptions with stack traces of a given depth.
+ */
+final class Exceptions {
+
+	private Exceptions() { }
+
+	static Exception deep(int depth) {
+		if (depth <= 1) {
+			return new IllegalStateException("Order not found", new IllegalArgumentException("id"));
+		}
+		return deep(depth - 1);
+	}
+}
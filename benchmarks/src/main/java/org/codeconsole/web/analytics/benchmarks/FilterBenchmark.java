@@ -0,0 +1,149 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.codeconsole.web.analytics.AnalyticsFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+/**
+ * Cost of {@link AnalyticsFilter#doFilter} per request, for a session
+ * owned by one thread and for a session shared by four threads.  The
+ * <code>mock</code> benchmark measures building the mock request and
+ * response alone, which the other results include.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+	/**
+	 * <code>plain</code>: no exclusion rules; <code>regex</code>: 50
+	 * exclusion rules that each need a regular expression;
+	 * <code>exceptions</code>: every request throws.
+	 */
+	@Param({ "plain", "regex", "exceptions" })
+	public String mix;
+
+	@Param({ "10", "50", "500" })
+	public int historySize;
+
+	private AnalyticsFilter filter;
+	private FilterChain chain;
+
+	@Setup
+	public void setUp() throws ServletException {
+		MockFilterConfig config = new MockFilterConfig();
+		config.addInitParameter("history-size", Integer.toString(historySize));
+		config.addInitParameter("exclude-params", "password");
+		if ("regex".equals(mix)) {
+			StringBuilder rules = new StringBuilder();
+			for (int i = 0; i < 50; i++) {
+				rules.append("/static").append(i).append("/[a-z]+/\\d+\\.(css|js)\n");
+			}
+			config.addInitParameter("exclude-urls", rules.toString());
+		}
+		filter = new AnalyticsFilter();
+		filter.init(config);
+
+		final boolean fail = "exceptions".equals(mix);
+		chain = new FilterChain() {
+			public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+				if (fail) {
+					throw new IllegalStateException("Order not found");
+				}
+				response.setContentType("text/html");
+				response.getWriter().write("<html><body>order</body></html>");
+			}
+		};
+	}
+
+	@TearDown
+	public void tearDown() {
+		filter.destroy();
+	}
+
+	@State(Scope.Thread)
+	public static class OwnSession {
+		final HttpSession session = new MockHttpSession();
+		int id;
+	}
+
+	@State(Scope.Benchmark)
+	public static class SharedSession {
+		final HttpSession session = new Requests.ConcurrentSession();
+	}
+
+	@State(Scope.Thread)
+	public static class Counter {
+		int id;
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object mock(OwnSession own) {
+		return new Object[] { Requests.request(own.session, own.id++ & 1023), new MockHttpServletResponse() };
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Object ownSession(OwnSession own) throws IOException, ServletException {
+		return doFilter(own.session, own.id++);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object sharedSession(SharedSession shared, Counter counter) throws IOException, ServletException {
+		return doFilter(shared.session, counter.id++);
+	}
+
+	private Object doFilter(HttpSession session, int id) throws IOException, ServletException {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		try {
+			filter.doFilter(Requests.request(session, id & 1023), response, chain);
+		} catch (IllegalStateException expected) {
+			// the exceptions mix
+		}
+		return response;
+	}
+}
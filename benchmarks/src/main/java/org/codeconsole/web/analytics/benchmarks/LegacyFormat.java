@@ -0,0 +1,127 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Plain <code>Serializable</code> mirrors of the session classes as they
+ * were before the compact format, with the same fields and default Java
+ * serialization, used as the baseline of {@link SerializationBenchmark}.
+ */
+final class LegacyFormat {
+
+	private LegacyFormat() { }
+
+	/**
+	 * @return a legacy session with the same content as
+	 * {@link Requests#session(int)}.
+	 */
+	static Session session(int historySize) {
+		Session session = new Session(historySize, "http://localhost/", "127.0.0.1");
+		for (int i = 0; i < historySize; i++) {
+			boolean failed = i % 10 == 9;
+			Map<String, String[]> parameters = new HashMap<String, String[]>();
+			parameters.put("filter", new String[] { "open" });
+			parameters.put("password", new String[] { "secret" });
+			Request request = new Request("GET", "http://localhost/orders/" + i + "/items",
+					"page=2&sort=date", parameters, "r1234");
+			request.completionTime = System.currentTimeMillis();
+			request.status = failed? 500 : 200;
+			if (failed) {
+				request.exception = new WrappedException(Exceptions.deep(20));
+			}
+			session.history.offer(request);
+		}
+		return session;
+	}
+
+	static final class Session implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long creationTime = System.currentTimeMillis();
+		private final String referer;
+		private final String ip;
+		private final int maxHistorySize;
+		private Serializable userDetails;
+		private Queue<Request> history = new LinkedList<Request>();
+		private Map<String, Object> properties = new HashMap<String, Object>();
+
+		Session(int maxHistorySize, String referer, String ip) {
+			this.maxHistorySize = maxHistorySize;
+			this.referer = referer;
+			this.ip = ip;
+		}
+	}
+
+	static final class Request implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Date requestTime = new Date();
+		private long completionTime;
+		private final String url;
+		private final String method;
+		private final String queryString;
+		private int status = 0;
+		private final Map<String, String[]> parameterMap;
+		private WrappedException exception;
+		private final String sourceRevision;
+
+		Request(String method, String url, String queryString, Map<String, String[]> parameterMap, String sourceRevision) {
+			this.method = method;
+			this.url = url;
+			this.queryString = queryString;
+			this.parameterMap = parameterMap;
+			this.sourceRevision = sourceRevision;
+		}
+	}
+
+	static final class WrappedException implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Exception exception;
+		private final String fileName;
+		private final String methodName;
+		private final Integer lineNumber;
+		private final String stackTrace;
+		private final Date timeStamp = new Date();
+
+		WrappedException(Exception exception) {
+			this.exception = exception;
+			StackTraceElement[] stack = exception.getStackTrace();
+			this.fileName = stack.length > 0? stack[0].getFileName() : null;
+			this.methodName = stack.length > 0? stack[0].getMethodName() : null;
+			this.lineNumber = stack.length > 0? stack[0].getLineNumber() : null;
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			exception.printStackTrace(pw);
+			this.stackTrace = sw.toString();
+			pw.close();
+			try {
+				sw.close();
+			} catch (IOException ex) { }
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codeconsole.web.analytics.AnalyticsHttpRequest;
+import org.codeconsole.web.analytics.AnalyticsSession;
+import org.codeconsole.web.analytics.WrappedException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the individual steps of recording a request: building the
+ * record, appending it to the history, capturing an exception and
+ * rendering the history.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordBenchmark {
+
+	@Param({ "10", "50", "500" })
+	public int historySize;
+
+	@Param({ "20", "200" })
+	public int stackDepth;
+
+	private AnalyticsSession session;
+	private Exception exception;
+	private WrappedException wrapped;
+	private int id;
+
+	@Setup
+	public void setUp() {
+		session = Requests.session(historySize);
+		exception = Exceptions.deep(stackDepth);
+		wrapped = new WrappedException(exception);
+	}
+
+	@Benchmark
+	public AnalyticsHttpRequest createRequest() {
+		return Requests.record(id++, false);
+	}
+
+	@Benchmark
+	public AnalyticsSession appendHistory() {
+		session.appendHistory(Requests.record(id++, false));
+		return session;
+	}
+
+	@Benchmark
+	public WrappedException captureException() {
+		return new WrappedException(exception);
+	}
+
+	@Benchmark
+	public String captureAndRenderException() {
+		return new WrappedException(exception).getStackTrace();
+	}
+
+	@Benchmark
+	public long fingerprint() {
+		return new WrappedException(exception).getFingerprint();
+	}
+
+	@Benchmark
+	public String renderCapturedException() {
+		return wrapped.getStackTrace();
+	}
+
+	@Benchmark
+	public String toHtmlString() {
+		return session.toHtmlString();
+	}
+}
@@ -0,0 +1,90 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+import org.codeconsole.web.analytics.AnalyticsHttpRequest;
+import org.codeconsole.web.analytics.AnalyticsSession;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+/**
+ * Request fixtures shared by the benchmarks.
+ */
+final class Requests {
+
+	private Requests() { }
+
+	static MockHttpServletRequest request(HttpSession session, int id) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/orders/" + id + "/items");
+		request.setQueryString("page=2&sort=date");
+		request.addParameter("page", "2");
+		request.addParameter("sort", "date");
+		request.addParameter("filter", "open");
+		request.addParameter("password", "secret");
+		request.addHeader("referer", "http://localhost/orders");
+		request.setSession(session);
+		return request;
+	}
+
+	static AnalyticsHttpRequest record(int id, boolean failed) {
+		Map<String, String[]> parameters = new HashMap<String, String[]>();
+		parameters.put("filter", new String[] { "open" });
+		parameters.put("password", new String[] { "secret" });
+		AnalyticsHttpRequest request = new AnalyticsHttpRequest("GET", "http://localhost/orders/" + id + "/items",
+				"page=2&sort=date", parameters, "r1234");
+		request.setCompletionTime(System.currentTimeMillis());
+		request.setStatus(failed? 500 : 200);
+		if (failed) {
+			request.setException(Exceptions.deep(20));
+		}
+		return request;
+	}
+
+	/**
+	 * @return a session with a full history in which every tenth request failed.
+	 */
+	static AnalyticsSession session(int historySize) {
+		AnalyticsSession session = new AnalyticsSession(historySize, "http://localhost/", "127.0.0.1");
+		for (int i = 0; i < historySize; i++) {
+			session.appendHistory(record(i, i % 10 == 9));
+		}
+		return session;
+	}
+
+	/**
+	 * Session whose attributes may be used by several threads at once, as
+	 * the containers' sessions can.
+	 */
+	static final class ConcurrentSession extends MockHttpSession {
+		public synchronized Object getAttribute(String name) {
+			return super.getAttribute(name);
+		}
+
+		public synchronized void setAttribute(String name, Object value) {
+			super.setAttribute(name, value);
+		}
+
+		public synchronized void removeAttribute(String name) {
+			super.removeAttribute(name);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.codeconsole.web.analytics.AnalyticsSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of serializing and deserializing a session, as done on every
+ * replication, in the compact format and, as a baseline, with default Java
+ * serialization of the same content (see {@link LegacyFormat}).  The
+ * serialized sizes are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+	@Param({ "10", "50", "500" })
+	public int historySize;
+
+	private AnalyticsSession session;
+	private byte[] serialized;
+	private LegacyFormat.Session legacySession;
+	private byte[] legacySerialized;
+
+	@Setup
+	public void setUp() throws IOException {
+		session = Requests.session(historySize);
+		serialized = write(session);
+		legacySession = LegacyFormat.session(historySize);
+		legacySerialized = write(legacySession);
+	}
+
+	@TearDown(Level.Trial)
+	public void printSize() {
+		System.out.println();
+		System.out.println("Serialized size of a session with " + historySize + " requests: " + serialized.length +
+				" bytes, " + legacySerialized.length + " bytes with default serialization");
+	}
+
+	private static byte[] write(Object session) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(session);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object read(byte[] serialized) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return write(session);
+	}
+
+	@Benchmark
+	public Object deserialize() throws IOException, ClassNotFoundException {
+		return read(serialized);
+	}
+
+	@Benchmark
+	public byte[] serializeDefault() throws IOException {
+		return write(legacySession);
+	}
+
+	@Benchmark
+	public Object deserializeDefault() throws IOException, ClassNotFoundException {
+		return read(legacySerialized);
+	}
+}
@@ -17,17 +17,21 @@
 
 package org.codeconsole.web.analytics;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeoutException;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -36,15 +40,20 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.codeconsole.web.analytics.integration.AnalyticsGateway;
+import org.codeconsole.web.analytics.integration.AsyncAnalyticsGateway;
+import org.codeconsole.web.analytics.integration.CachingSourceRevisionResolver;
+import org.codeconsole.web.analytics.integration.ErrorSummaryGateway;
+import org.codeconsole.web.analytics.integration.SpoolingAnalyticsGateway;
 import org.codeconsole.web.analytics.integration.SourceRevisionResolver;
 import org.codeconsole.web.analytics.integration.UserDetailsResolver;
-import org.springframework.beans.factory.BeanDefinitionStoreException;
-import org.springframework.context.ApplicationContext;
-import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.codeconsole.web.analytics.integration.VersionedUserDetailsResolver;
+import org.codeconsole.web.analytics.metrics.Gauge;
+import org.codeconsole.web.analytics.metrics.MetricsExporter;
+import org.codeconsole.web.analytics.metrics.MetricsRegistry;
 import org.springframework.web.bind.ServletRequestUtils;
-import org.springframework.web.context.support.WebApplicationContextUtils;
 
 /**
  * Servlet Filter implementation class AnalyticsFilter
@@ -57,192 +66,833 @@ public class AnalyticsFilter implements Filter {
 	private String analyticsUrl = DEFAULT_ANALTICS_URL;
 	private String springConfiguration = DEFAULT_SPRING_CONFIGURATION;
 	
-	private String sessionAttributeName = "analyticsSession";
-	private int maxHistorySize = 50;
-	private AnalyticsGateway analyticsGateway;
-	private List<Pattern> excludedUrlPatterns = new ArrayList<Pattern>(); 
-	private List<Pattern> excludedParamPatterns = new ArrayList<Pattern>(); 
-	
-	private SourceRevisionResolver sourceRevisionResolver;
-	private UserDetailsResolver userDetailsResolver;
+	// settings that can be changed at runtime, read once per request
+	private ConfigurationManager configurationManager = new ConfigurationManager(
+			new FilterConfiguration(new HashMap<String, String>()));
+	private ObjectName configurationName;
+	private String configurationToken;
+	private volatile AnalyticsGateway analyticsGateway;
 	
+	private volatile SourceRevisionResolver sourceRevisionResolver;
+	private volatile UserDetailsResolver userDetailsResolver;
+
+	private volatile AsyncAnalyticsGateway asyncGateway;
+	private volatile SpoolingAnalyticsGateway spoolingGateway;
+	private volatile ReportThrottle reportThrottle;
+	private MetricsRegistry metrics;
+	private MetricsExporter metricsExporter = new MetricsExporter();
+	private OffHeapHistoryStore historyStore;
+	private MemoryBudget memoryBudget = new MemoryBudget(0, 0);
+	// whether the container implements Servlet 3.0, whose async methods may only be called then
+	private boolean asyncSupported;
+	private EventJournal journal;
+
+	private FilterConfig filterConfig;
+	private ComponentLoader.Wiring wiring = ComponentLoader.Wiring.SPRING;
+	private ComponentLoader.Startup startup = ComponentLoader.Startup.EAGER;
+	private volatile boolean componentsLoaded;
+	private boolean destroyed;
+	private Thread componentLoader;
+
 	/**
-	 * Default constructor. 
+	 * Default constructor.
 	 */
 	public AnalyticsFilter() { }
 
 	/**
 	 * @see Filter#destroy()
 	 */
-	public void destroy() { }
+	public void destroy() {
+		synchronized (this) {
+			// waits for components that are being loaded
+			destroyed = true;
+		}
+		if (configurationName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(configurationName);
+			} catch (JMException e) {
+				System.out.println("AnalyticsFilter: Could not unregister " + configurationName + ": " + e);
+			}
+		}
+		if (reportThrottle != null) {
+			reportThrottle.stop(5000);
+			System.out.println("AnalyticsFilter: Report throttle stopped. suppressed=" + reportThrottle.getSuppressedCount() +
+					", summaries sent=" + reportThrottle.getSummariesSentCount() + ", failed=" + reportThrottle.getSummariesFailedCount() +
+					", dropped=" + reportThrottle.getSummariesDroppedCount());
+		}
+		if (asyncGateway != null) {
+			asyncGateway.shutdown(5000);
+			System.out.println("AnalyticsFilter: Dispatcher stopped. enqueued=" + asyncGateway.getEnqueuedCount() +
+					", sent=" + asyncGateway.getSentCount() + ", dropped=" + asyncGateway.getDroppedCount() +
+					", failed=" + asyncGateway.getFailedCount());
+		}
+		if (spoolingGateway != null) {
+			spoolingGateway.shutdown(5000);
+			System.out.println("AnalyticsFilter: Spool stopped. spooled=" + spoolingGateway.getSpooledCount() +
+					", sent=" + spoolingGateway.getSentCount() + ", pending=" + spoolingGateway.getPending() +
+					", dropped=" + spoolingGateway.getDroppedCount());
+		}
+		if (historyStore != null) {
+			historyStore.close();
+		}
+		if (journal != null) {
+			journal.close(5000);
+			System.out.println("AnalyticsFilter: Journal stopped. appended=" + journal.getAppendedCount() +
+					", written=" + journal.getWrittenCount() + ", dropped=" + journal.getDroppedCount());
+		}
+	}
 
 	/**
 	 * @see Filter#doFilter(ServletRequest, ServletResponse, FilterChain)
 	 */
 	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)  throws IOException, ServletException{
+		if (asyncSupported && request.getDispatcherType() == DispatcherType.ASYNC) {
+			// the request is completed by the listener registered on the original dispatch
+			chain.doFilter(request, response);
+			return;
+		}
+		if (!componentsLoaded && startup == ComponentLoader.Startup.LAZY) {
+			loadComponentsOrSkip();
+		}
+		FilterConfiguration config = configurationManager.getConfiguration();
+		long filterStart = System.nanoTime();
+		// decided before anything is allocated for the request
+		double sampleRate = config.getSampler().sample(filterStart);
 		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		if (ByteCountingServletRequest.needsCounting(httpRequest)) {
+			request = httpRequest = new ByteCountingServletRequest(httpRequest);
+		}
 		HttpStatusExposingServletResponse httpResponse = new HttpStatusExposingServletResponse((HttpServletResponse) response);
 
-		AnalyticsSession analyticsSession = (AnalyticsSession) httpRequest.getSession().getAttribute(sessionAttributeName);
-		if (analyticsSession == null) {
-			analyticsSession = new AnalyticsSession(maxHistorySize, httpRequest.getHeader("referer"), getIp(httpRequest));
-			httpRequest.getSession().setAttribute(sessionAttributeName, analyticsSession); 
-		}	    
-
 		String compareUrl = getComparisonUrl((HttpServletRequest) request);
+		if (metrics != null && compareUrl.endsWith(analyticsUrl + "/metrics")) {
+			MetricsExporter.Format format = MetricsExporter.Format.JSON;
+			String formatParam = request.getParameter("format");
+			if (formatParam != null) {
+				try {
+					format = MetricsExporter.Format.valueOf(formatParam.trim().toUpperCase());
+				} catch (IllegalArgumentException e) {
+					httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown format: " + formatParam);
+					return;
+				}
+			}
+			response.setContentType(format.getContentType());
+			response.setCharacterEncoding("UTF-8");
+			PrintWriter out = response.getWriter();
+			metricsExporter.export(metrics, out, format);
+			out.close();
+			return;
+		}
+
+		if (configurationToken != null && compareUrl.endsWith(analyticsUrl + "/config")) {
+			configure(httpRequest, httpResponse);
+			return;
+		}
+
 		if (compareUrl.endsWith(analyticsUrl)) {
-			response.setContentType("text/html");
+			AnalyticsSession analyticsSession = getAnalyticsSession(config, httpRequest);
+			ReportRenderer.Format format = ReportRenderer.Format.HTML;
+			String formatParam = request.getParameter("format");
+			if (formatParam != null) {
+				try {
+					format = ReportRenderer.Format.valueOf(formatParam.trim().toUpperCase());
+				} catch (IllegalArgumentException e) {
+					httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown format: " + formatParam);
+					return;
+				}
+			}
+			int offset = ServletRequestUtils.getIntParameter(request, "offset", 0);
+			int limit = ServletRequestUtils.getIntParameter(request, "limit", Integer.MAX_VALUE);
+			boolean html = format == ReportRenderer.Format.HTML;
+
+			response.setContentType(format.getContentType());
+			response.setCharacterEncoding("UTF-8");
 			PrintWriter out = response.getWriter();
-			out.println("<html><head><title>Analytics Report</title></head><body>");
+			if (html) {
+				out.println("<html><head><title>Analytics Report</title></head><body>");
+			}
 			if (ServletRequestUtils.getBooleanParameter(request, "send", false)) {
-				if (analyticsGateway != null) {
-					analyticsGateway.sendAnalytics(analyticsSession);
-				} else {
+				AnalyticsGateway gateway = analyticsGateway;
+				if (gateway != null) {
+					gateway.sendAnalytics(analyticsSession.snapshot());
+					if (html) {
+						out.println("<div>Message: Report Sent!</div>");
+					}
+				} else if (html) {
 					out.println("<div>Warning: Can't send report.  No Spring application context specified/configured.</div>");
 				}
-				out.println("<div>Message: Report Sent!</div>");
 			}
 			if (ServletRequestUtils.getBooleanParameter(request, "clear", false)) {
 				analyticsSession.clear();
-				httpRequest.getSession().setAttribute(sessionAttributeName, analyticsSession);
-				out.println("<div>Message: History Cleared!</div>");
-			}			
-			out.print("<div><a href=\"?\">Refresh</a> &nbsp; <a href=\"?clear=true\">Clear</a> &nbsp; <a href=\"?send=true\">Send</a> &nbsp; <a href=\"?send=true&clear=true\">Send and Clear</a></div>");
-			out.print(analyticsSession.toHtmlString());
-			out.println("</body></html>");
-			out.close();			
-		} else {
-			String sourceRevision = sourceRevisionResolver == null? null : sourceRevisionResolver.getRevision(httpRequest);
-			
-			Map<String, String[]> filteredParamMap = request.getParameterMap();
-			if (!excludedUrlPatterns.isEmpty()) {
-				filteredParamMap = new HashMap<String, String[]>();
-				for (Iterator<Map.Entry<String, String[]>> it = request.getParameterMap().entrySet().iterator(); it.hasNext();) {
-					Entry<String, String[]> next = it.next();
-					for (Pattern exclude : excludedUrlPatterns) {
-						if (exclude.matcher(compareUrl).matches()) {
-							filteredParamMap.put(next.getKey(), new String[] { "**FILTERED**" });
-						} else {
-							filteredParamMap.put(next.getKey(), next.getValue());
-						}
-					}				
+				config.getSessionReplicator().replicate(httpRequest.getSession(), analyticsSession);
+				if (html) {
+					out.println("<div>Message: History Cleared!</div>");
 				}
 			}
-				
-			@SuppressWarnings("unchecked")
-			AnalyticsHttpRequest rq = new AnalyticsHttpRequest(httpRequest.getMethod(), httpRequest.getRequestURL().toString(), httpRequest.getQueryString(), filteredParamMap, sourceRevision);
+			if (html) {
+				out.print("<div><a href=\"?\">Refresh</a> &nbsp; <a href=\"?clear=true\">Clear</a> &nbsp; <a href=\"?send=true\">Send</a> &nbsp; <a href=\"?send=true&amp;clear=true\">Send and Clear</a>" +
+						" &nbsp; <a href=\"?format=text\">Text</a> &nbsp; <a href=\"?format=json\">JSON</a></div>");
+			}
+			ReportRenderer.getInstance().render(analyticsSession, out, format, offset, limit);
+			if (html) {
+				out.println("</body></html>");
+			}
+			out.close();
+		} else {
+			// evaluated once, used for both parameter filtering and ignoring the request
+			boolean excluded = config.getExcludedUrls().isExcluded(compareUrl);
+			String urlTemplate = config.getRouteNormalizer().normalize(compareUrl);
+			AnalyticsSession analyticsSession = null;
+			AnalyticsHttpRequest rq = null;
+			if (sampleRate > 0) {
+				analyticsSession = getAnalyticsSession(config, httpRequest);
+				rq = createRequest(config, httpRequest, urlTemplate, excluded);
+				rq.setSampleWeight(1 / sampleRate);
+			}
+			Exception failure = null;
+			boolean async = false;
+			long chainStart = System.nanoTime();
 			try {
 				chain.doFilter(request, httpResponse);	        
+				async = asyncSupported && request.isAsyncStarted();
 			} catch (IOException e) {
-				rq.setException(e);
+				failure = e;
 				throw e;
 			} catch (ServletException e) {
-				rq.setException(e);
+				failure = e;
 				throw e;
 			} catch (RuntimeException e) {
-				rq.setException(e);
+				failure = e;
 				throw e;
 			} finally {
-				rq.setCompletionTime(System.currentTimeMillis());
-				rq.setStatus(httpResponse.getStatus());
-
-				boolean ignore = false;
-				if (rq.getStatus() == 200 || rq.getStatus() == 304) {
-					for (Pattern exclude : excludedUrlPatterns) {
-						if (exclude.matcher(compareUrl).matches()) {
-							ignore = true;
-							break;
-						}
-					}
-				}
-				if (!ignore) {
-					analyticsSession.appendHistory(rq);
-				}
-				
-				Serializable userDetails = userDetailsResolver == null? null : 
-					userDetailsResolver.getUserDetails(httpRequest);
-				if (userDetails != null && 
-						(analyticsSession.getUserDetails() == null ||
-						!analyticsSession.getUserDetails().equals(userDetails))) {
-					analyticsSession.setUserDetails(userDetails);
-				}
-				
-				// in case of clustered sessions, always update the session object to propagate the update.
-				if (!httpResponse.isCommitted()) {
-					httpRequest.getSession().setAttribute(sessionAttributeName, analyticsSession);
+				if (async) {
+					// finished by the listener once the async processing completes
+					request.getAsyncContext().addListener(new AsyncCompletionListener(config, httpRequest, httpResponse,
+							analyticsSession, rq, urlTemplate, excluded, sampleRate, filterStart, chainStart), request, httpResponse);
+				} else {
+					complete(config, httpRequest, httpResponse, analyticsSession, rq, urlTemplate, excluded, sampleRate,
+							filterStart, chainStart, System.nanoTime(), httpResponse.getStatus(), failure);
 				}
-				if (rq.getWrappedException() != null && analyticsGateway != null) {
-					analyticsGateway.sendAnalytics(analyticsSession);
+			}
+		}
+	}
+
+	/**
+	 * Records the metrics and, if sampled or it must be recorded, the request.
+	 * @param finishStart {@link System#nanoTime()} at which the request was
+	 * handed back to the filter, either by the chain or by the async listener.
+	 */
+	private void complete(FilterConfiguration config, HttpServletRequest httpRequest, HttpStatusExposingServletResponse httpResponse,
+			AnalyticsSession analyticsSession, AnalyticsHttpRequest rq, String urlTemplate, boolean excluded,
+			double sampleRate, long filterStart, long chainStart, long finishStart, int status, Exception failure) {
+		httpResponse.markComplete();
+		long processingNanos = httpResponse.getCompletionNanos() - chainStart;
+		long requestBytes = ByteCountingServletRequest.getBodySize(httpRequest);
+		if (metrics != null) {
+			metrics.record(urlTemplate, httpRequest.getMethod(), status, processingNanos / 1000,
+					requestBytes, httpResponse.getBytesWritten());
+		}
+		RequestSampler sampler = config.getSampler();
+		if (sampler.mustRecord(status, failure != null, processingNanos)) {
+			if (rq == null) {
+				// not sampled, but the session can only be created while the response is not committed
+				HttpSession session = httpRequest.getSession(!httpResponse.isCommitted());
+				if (session != null) {
+					analyticsSession = getAnalyticsSession(config, httpRequest);
+					rq = createRequest(config, httpRequest, urlTemplate, excluded);
+					rq.setRequestTime(System.currentTimeMillis() - (finishStart - filterStart) / 1000000);
 				}
 			}
+			if (rq != null) {
+				rq.setSampleWeight(1);
+			}
+		}
+		if (rq != null) {
+			if (failure != null) {
+				rq.setException(failure);
+			}
+			rq.setCompletionTime(System.currentTimeMillis());
+			rq.setStatus(status);
+			long firstByte = httpResponse.getFirstByteNanos();
+			rq.setTiming(processingNanos, firstByte == 0? -1 : firstByte - chainStart,
+					(chainStart - filterStart) + (System.nanoTime() - finishStart));
+			rq.setSizes(requestBytes, httpResponse.getBytesWritten());
+			record(config, httpRequest, httpResponse, analyticsSession, rq, excluded);
+			if (sampleRate > 0) {
+				sampler.recordOverhead((chainStart - filterStart) + (System.nanoTime() - finishStart));
+			}
 		}
 	}
 
+	/**
+	 * Completes requests that went async once the response is actually
+	 * produced, timed out or failed.  Runs on whichever thread completes the
+	 * request; no container thread waits for it.
+	 */
+	private final class AsyncCompletionListener implements AsyncListener {
+		private final FilterConfiguration config;
+		private final HttpServletRequest httpRequest;
+		private final HttpStatusExposingServletResponse httpResponse;
+		private final AnalyticsSession analyticsSession;
+		private final AnalyticsHttpRequest rq;
+		private final String urlTemplate;
+		private final boolean excluded;
+		private final double sampleRate;
+		private final long filterStart;
+		private final long chainStart;
+		private Exception failure;
+
+		AsyncCompletionListener(FilterConfiguration config, HttpServletRequest httpRequest, HttpStatusExposingServletResponse httpResponse,
+				AnalyticsSession analyticsSession, AnalyticsHttpRequest rq, String urlTemplate, boolean excluded,
+				double sampleRate, long filterStart, long chainStart) {
+			this.config = config;
+			this.httpRequest = httpRequest;
+			this.httpResponse = httpResponse;
+			this.analyticsSession = analyticsSession;
+			this.rq = rq;
+			this.urlTemplate = urlTemplate;
+			this.excluded = excluded;
+			this.sampleRate = sampleRate;
+			this.filterStart = filterStart;
+			this.chainStart = chainStart;
+		}
+
+		public void onStartAsync(AsyncEvent event) {
+			// async was restarted from an async dispatch; listeners have to register again
+			event.getAsyncContext().addListener(this, event.getSuppliedRequest(), event.getSuppliedResponse());
+		}
+
+		public void onTimeout(AsyncEvent event) {
+			if (failure == null) {
+				failure = new TimeoutException("Async request timed out after " + event.getAsyncContext().getTimeout() + " ms");
+			}
+		}
+
+		public void onError(AsyncEvent event) {
+			Throwable error = event.getThrowable();
+			failure = error instanceof Exception? (Exception) error : new ServletException(error);
+		}
+
+		public void onComplete(AsyncEvent event) {
+			long finishStart = System.nanoTime();
+			// the container's status, which includes errors it sent on timeout
+			int status = ((HttpServletResponse) httpResponse.getResponse()).getStatus();
+			httpResponse.measureUnwrapped();
+			complete(config, httpRequest, httpResponse, analyticsSession, rq, urlTemplate, excluded, sampleRate,
+					filterStart, chainStart, finishStart, status, failure);
+		}
+	}
+
+	private AnalyticsSession getAnalyticsSession(FilterConfiguration config, HttpServletRequest httpRequest) {
+		SessionReplicator sessionReplicator = config.getSessionReplicator();
+		int maxHistorySize = config.getMaxHistorySize();
+		AnalyticsSession analyticsSession = sessionReplicator.getSession(httpRequest.getSession());
+		if (analyticsSession == null) {
+			analyticsSession = historyStore == null?
+					new AnalyticsSession(maxHistorySize, httpRequest.getHeader("referer"), getIp(httpRequest)) :
+					new AnalyticsSession(maxHistorySize, httpRequest.getHeader("referer"), getIp(httpRequest), historyStore);
+			sessionReplicator.register(httpRequest.getSession(), analyticsSession);
+		} else if (analyticsSession.needsHistoryStore()) {
+			analyticsSession.attachHistory(historyStore);
+		}
+		if (!analyticsSession.hasBudget()) {
+			analyticsSession.attachBudget(memoryBudget);
+		}
+		return analyticsSession;
+	}
+
+	private AnalyticsHttpRequest createRequest(FilterConfiguration config, HttpServletRequest httpRequest, String urlTemplate, boolean excluded) {
+		SourceRevisionResolver revisionResolver = sourceRevisionResolver;
+		String sourceRevision = revisionResolver == null? null : revisionResolver.getRevision(httpRequest);
+		String queryString = httpRequest.getQueryString();
+		@SuppressWarnings("unchecked")
+		ParameterRedactor.View parameters = config.getParameterRedactor().redact(httpRequest.getParameterMap(), queryString, excluded);
+		StringPool pool = StringPool.getShared();
+		AnalyticsHttpRequest rq = new AnalyticsHttpRequest(pool.canonicalize(httpRequest.getMethod()),
+				pool.canonicalize(httpRequest.getRequestURL()), pool.canonicalize(queryString), parameters,
+				pool.canonicalize(sourceRevision));
+		rq.setUrlTemplate(pool.canonicalize(urlTemplate));
+		return rq;
+	}
+
+	private void record(FilterConfiguration config, HttpServletRequest httpRequest, HttpStatusExposingServletResponse httpResponse,
+			AnalyticsSession analyticsSession, AnalyticsHttpRequest rq, boolean excluded) {
+		boolean ignore = excluded && (rq.getStatus() == 200 || rq.getStatus() == 304);
+		if (!ignore) {
+			if (journal != null) {
+				journal.append(httpRequest.getSession().getId(), rq);
+			}
+			analyticsSession.appendHistory(rq);
+		}
+		
+		UserDetailsResolver userResolver = userDetailsResolver;
+		if (userResolver != null) {
+			updateUserDetails(userResolver, httpRequest, analyticsSession);
+		}
+		
+		// in case of clustered sessions, update the session object to propagate changes.
+		if (!httpResponse.isCommitted()) {
+			config.getSessionReplicator().replicate(httpRequest.getSession(), analyticsSession);
+		}
+		AnalyticsGateway gateway = analyticsGateway;
+		if (rq.getWrappedException() != null && gateway != null &&
+				(reportThrottle == null || reportThrottle.admit(rq.getWrappedException()))) {
+			try {
+				gateway.sendAnalytics(analyticsSession.snapshot());
+			} catch (RuntimeException e) {
+				// never fail the request because the report could not be sent
+				System.out.println("AnalyticsFilter: Failed to send report: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Resolves and compares the user details only if the resolver cannot
+	 * tell that they are unchanged since the last request of the session.
+	 */
+	private void updateUserDetails(UserDetailsResolver userDetailsResolver, HttpServletRequest httpRequest,
+			AnalyticsSession analyticsSession) {
+		Object version = null;
+		if (userDetailsResolver instanceof VersionedUserDetailsResolver) {
+			version = ((VersionedUserDetailsResolver) userDetailsResolver).getVersion(httpRequest);
+			if (version != null && version == analyticsSession.getUserDetailsVersion()) {
+				return;
+			}
+		}
+		Serializable userDetails = userDetailsResolver.getUserDetails(httpRequest);
+		if (userDetails != null && 
+				(analyticsSession.getUserDetails() == null ||
+				!analyticsSession.getUserDetails().equals(userDetails))) {
+			analyticsSession.setUserDetails(userDetails);
+		}
+		analyticsSession.setUserDetailsVersion(version);
+	}
+
 	/**
 	 * @see Filter#init(FilterConfig)
 	 */
 	public void init(FilterConfig fConfig) throws ServletException {
+		long initStart = System.nanoTime();
+		this.filterConfig = fConfig;
+		asyncSupported = fConfig.getServletContext() != null && fConfig.getServletContext().getMajorVersion() >= 3;
 		String springConfigurationParam = fConfig.getInitParameter("spring-context-location");
 		if (springConfigurationParam != null) {
 			this.springConfiguration = springConfigurationParam;
 		}		
 		
-		ApplicationContext context = null;
+		String wiringParam = fConfig.getInitParameter("wiring");
+		if (wiringParam != null) {
+			wiring = ComponentLoader.Wiring.valueOf(wiringParam.trim().toUpperCase());
+		} else if (fConfig.getInitParameter(ComponentLoader.GATEWAY_CLASS) != null) {
+			wiring = ComponentLoader.Wiring.SERVICES;
+		}
+		String startupParam = fConfig.getInitParameter("startup");
+		if (startupParam != null) {
+			startup = ComponentLoader.Startup.valueOf(startupParam.trim().toUpperCase());
+		}
+
+		FilterConfiguration configuration;
 		try {
-			context = new ClassPathXmlApplicationContext(springConfiguration);
-		} catch (BeanDefinitionStoreException notfound) {
-			System.out.println("AnalyticsFilter: Could not locate context configuration: "+springConfiguration + ". Attempting to load root Web Application Context.");
-			context = WebApplicationContextUtils.getWebApplicationContext(fConfig.getServletContext());
-		}
-		System.out.println("AnalyticsFilter: Loading bean definitions.");
-		if (context != null) {
-			if (context.containsBean("analyticsGateway")) {
-				analyticsGateway = context.getBean("analyticsGateway", AnalyticsGateway.class);
-				System.out.println("AnalyticsFilter: Gateway loaded.");
-			} else {
-				System.out.println("AnalyticsFilter: Could not a bean named 'analyticsGateway'. Analytics will not be sent!");
+			configuration = FilterConfiguration.from(fConfig);
+		} catch (IllegalArgumentException e) {
+			throw new ServletException("Invalid configuration: " + e.getMessage(), e);
+		}
+		configurationManager = new ConfigurationManager(configuration);
+		if (configuration.getSampler().getMode() != RequestSampler.Mode.OFF) {
+			System.out.println("AnalyticsFilter: " + configuration.getSampler().getMode() + " sampling of request history enabled.");
+		}
+		if (!"false".equals(fConfig.getInitParameter("jmx"))) {
+			registerConfiguration(fConfig);
+		}
+		configurationToken = fConfig.getInitParameter("config-token");
+		if (configurationToken != null) {
+			System.out.println("AnalyticsFilter: Configuration available at " + analyticsUrl + "/config");
+		}
+
+		String stringPoolSize = fConfig.getInitParameter("string-pool-size");
+		if (stringPoolSize != null) {
+			StringPool.setShared(new StringPool(Integer.parseInt(stringPoolSize)));
+		}
+
+		if ("offheap".equalsIgnoreCase(fConfig.getInitParameter("history-store"))) {
+			long budget = OffHeapHistoryStore.DEFAULT_BUDGET;
+			String budgetParam = fConfig.getInitParameter("history-store-budget");
+			if (budgetParam != null) {
+				budget = Long.parseLong(budgetParam);
+			}
+			int blockSize = OffHeapHistoryStore.DEFAULT_BLOCK_SIZE;
+			String blockSizeParam = fConfig.getInitParameter("history-store-block-size");
+			if (blockSizeParam != null) {
+				blockSize = Integer.parseInt(blockSizeParam);
 			}
-			
-			if (context.containsBean("userDetailsResolver")) {
-				userDetailsResolver = context.getBean("userDetailsResolver", UserDetailsResolver.class); 
-				System.out.println("AnalyticsFilter: UserDetailsResolver loaded.");
+			historyStore = new OffHeapHistoryStore(budget, blockSize);
+			System.out.println("AnalyticsFilter: History kept off-heap in at most " + budget + " bytes.");
+		}
+
+		String sessionLimitParam = fConfig.getInitParameter("history-max-bytes");
+		String globalLimitParam = fConfig.getInitParameter("history-global-max-bytes");
+		long sessionLimit = sessionLimitParam == null? 0 : Long.parseLong(sessionLimitParam);
+		long globalLimit = globalLimitParam == null? 0 : Long.parseLong(globalLimitParam);
+		memoryBudget = new MemoryBudget(sessionLimit, globalLimit);
+		if (sessionLimit > 0 || globalLimit > 0) {
+			System.out.println("AnalyticsFilter: History limited to " + (sessionLimit > 0? sessionLimit + " bytes per session" : "") +
+					(sessionLimit > 0 && globalLimit > 0? " and " : "") + (globalLimit > 0? globalLimit + " bytes in total" : "") + ".");
+		}
+
+		String journalDir = fConfig.getInitParameter("journal-dir");
+		if (journalDir != null) {
+			long journalSegmentSize = EventJournal.DEFAULT_SEGMENT_SIZE;
+			String journalSegmentSizeParam = fConfig.getInitParameter("journal-segment-size");
+			if (journalSegmentSizeParam != null) {
+				journalSegmentSize = Long.parseLong(journalSegmentSizeParam);
+			}
+			int maxSegments = EventJournal.DEFAULT_MAX_SEGMENTS;
+			String maxSegmentsParam = fConfig.getInitParameter("journal-max-segments");
+			if (maxSegmentsParam != null) {
+				maxSegments = Integer.parseInt(maxSegmentsParam);
+			}
+			int queueSize = EventJournal.DEFAULT_QUEUE_SIZE;
+			String queueSizeParam = fConfig.getInitParameter("journal-queue-size");
+			if (queueSizeParam != null) {
+				queueSize = Integer.parseInt(queueSizeParam);
+			}
+			journal = new EventJournal(new File(journalDir), journalSegmentSize, maxSegments, queueSize);
+			try {
+				journal.start();
+				System.out.println("AnalyticsFilter: Journaling requests to " + journal.getDirectory().getAbsolutePath());
+			} catch (IOException e) {
+				journal = null;
+				System.out.println("AnalyticsFilter: Journal disabled: " + e.getMessage());
 			}
+		}
 
-			if (context.containsBean("sourceRevisionResolver")) {
-				sourceRevisionResolver = context.getBean("sourceRevisionResolver", SourceRevisionResolver.class); 
-				System.out.println("AnalyticsFilter: SourceRevisionResolver loaded.");
+		if (!"false".equals(fConfig.getInitParameter("metrics"))) {
+			int maxEndpoints = MetricsRegistry.DEFAULT_MAX_ENDPOINTS;
+			String maxEndpointsParam = fConfig.getInitParameter("metrics-max-endpoints");
+			if (maxEndpointsParam != null) {
+				maxEndpoints = Integer.parseInt(maxEndpointsParam);
 			}
+			metrics = new MetricsRegistry(maxEndpoints);
+			final MemoryBudget budget = memoryBudget;
+			metrics.registerGauge("history_retained_bytes", "Estimated heap retained by session histories.", new Gauge() {
+				public long getValue() {
+					return budget.getUsedBytes();
+				}
+			});
+			metrics.registerGauge("history_sessions", "Sessions with a history on the heap.", new Gauge() {
+				public long getValue() {
+					return budget.getSessionCount();
+				}
+			});
+			metrics.registerGauge("history_evicted_entries", "History entries evicted to stay within the byte limits.", new Gauge() {
+				public long getValue() {
+					return budget.getSessionEvictions() + budget.getGlobalEvictions();
+				}
+			});
+			final StringPool pool = StringPool.getShared();
+			metrics.registerGauge("string_pool_hits", "Strings of history entries replaced by a pooled instance.", new Gauge() {
+				public long getValue() {
+					return pool.getHitCount();
+				}
+			});
+			metrics.registerGauge("string_pool_misses", "Strings of history entries added to the pool.", new Gauge() {
+				public long getValue() {
+					return pool.getMissCount();
+				}
+			});
+			metrics.registerGauge("string_pool_saved_bytes", "Estimated heap saved by pooled strings.", new Gauge() {
+				public long getValue() {
+					return pool.getSavedBytes();
+				}
+			});
+			final OffHeapHistoryStore store = historyStore;
+			if (store != null) {
+				metrics.registerGauge("history_offheap_used_bytes", "Bytes used in the off-heap history store.", new Gauge() {
+					public long getValue() {
+						return store.getUsedBytes();
+					}
+				});
+			}
+			System.out.println("AnalyticsFilter: Metrics available at " + analyticsUrl + "/metrics");
+		}
+
+		if (startup == ComponentLoader.Startup.EAGER) {
+			loadComponents();
+		} else if (startup == ComponentLoader.Startup.BACKGROUND) {
+			componentLoader = new Thread("AnalyticsStartup") {
+				public void run() {
+					loadComponentsOrSkip();
+				}
+			};
+			componentLoader.setDaemon(true);
+			componentLoader.start();
+		}
+		System.out.println("AnalyticsFilter: Initialized in " + (System.nanoTime() - initStart) / 1000000 + " ms" +
+				(startup == ComponentLoader.Startup.EAGER? "." : ", " + wiring + " components are loaded " +
+						(startup == ComponentLoader.Startup.LAZY? "by the first request." : "in the background.")));
+	}
+
+	private void registerConfiguration(FilterConfig fConfig) {
+		String context = fConfig.getServletContext() == null? "" : fConfig.getServletContext().getContextPath();
+		try {
+			configurationName = new ObjectName("org.codeconsole.web.analytics:type=Configuration,filter=" +
+					ObjectName.quote(context + "/" + fConfig.getFilterName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(configurationManager, configurationName);
+			System.out.println("AnalyticsFilter: Configuration registered as " + configurationName);
+		} catch (JMException e) {
+			configurationName = null;
+			System.out.println("AnalyticsFilter: Configuration not registered with JMX: " + e);
+		}
+	}
+
+	/**
+	 * Shows the runtime settings and, for POST requests, validates and
+	 * applies the <code>settings</code> parameter, in the format of
+	 * {@link FilterConfiguration#toString()}.  With <code>validate=true</code>
+	 * nothing is applied.  Requests must carry the <code>config-token</code>
+	 * in an <code>X-Analytics-Token</code> header.
+	 */
+	private void configure(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		String token = request.getHeader("X-Analytics-Token");
+		if (token == null || !MessageDigest.isEqual(token.getBytes("UTF-8"), configurationToken.getBytes("UTF-8"))) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		if ("POST".equals(request.getMethod())) {
+			String settings = request.getParameter("settings");
+			if (settings == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing settings");
+				return;
+			}
+			try {
+				Map<String, String> changes = FilterConfiguration.parseSettings(settings);
+				if (ServletRequestUtils.getBooleanParameter(request, "validate", false)) {
+					configurationManager.getConfiguration().with(changes);
+				} else {
+					configurationManager.apply(changes);
+				}
+			} catch (IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+				return;
+			}
+		}
+		response.setContentType("text/plain");
+		response.setCharacterEncoding("UTF-8");
+		PrintWriter out = response.getWriter();
+		out.print(configurationManager.getSettings());
+		out.close();
+	}
+
+	/**
+	 * Loads the components outside of {@link #init(FilterConfig)}, where a
+	 * failure must not fail requests: it is logged once and the filter goes
+	 * on without the components that could not be loaded.
+	 */
+	private synchronized void loadComponentsOrSkip() {
+		if (componentsLoaded || destroyed) {
+			return;
+		}
+		try {
+			loadComponents();
+		} catch (Exception e) {
+			System.out.println("AnalyticsFilter: Could not load components, analytics will not be sent: " + e);
+		} catch (LinkageError e) {
+			System.out.println("AnalyticsFilter: Could not load components, analytics will not be sent: " + e);
+		} finally {
+			componentsLoaded = true;
+		}
+	}
+
+	/**
+	 * Looks up the gateway and resolvers and wraps them as configured.  Runs
+	 * once, from {@link #init(FilterConfig)}, the first request or the
+	 * startup thread depending on the <code>startup</code> init-param.
+	 */
+	private synchronized void loadComponents() throws ServletException {
+		if (componentsLoaded || destroyed) {
+			return;
+		}
+		long start = System.nanoTime();
+		ComponentLoader loader = new ComponentLoader();
+		if (wiring == ComponentLoader.Wiring.SERVICES) {
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			loader.loadServices(new String[] {
+					filterConfig.getInitParameter(ComponentLoader.GATEWAY_CLASS),
+					filterConfig.getInitParameter(ComponentLoader.USER_DETAILS_RESOLVER_CLASS),
+					filterConfig.getInitParameter(ComponentLoader.SOURCE_REVISION_RESOLVER_CLASS) },
+					classLoader == null? getClass().getClassLoader() : classLoader);
 		} else {
-			System.out.println("AnalyticsFilter: Could not load root Web Application Context.");
+			loader.loadBeans(springConfiguration, filterConfig.getServletContext(), wiring == ComponentLoader.Wiring.SPRING);
 		}
-		
-		String historySize = fConfig.getInitParameter("history-size");
-		if (historySize != null) {
-			this.maxHistorySize = Integer.parseInt(historySize);
+		installComponents(loader.getAnalyticsGateway(), loader.getUserDetailsResolver(), loader.getSourceRevisionResolver());
+		componentsLoaded = true;
+		System.out.println("AnalyticsFilter: Components loaded in " + (System.nanoTime() - start) / 1000000 + " ms.");
+	}
+
+	/**
+	 * Wraps the components and publishes them.  The gateway is published
+	 * last so that a request that sees it also sees its throttle and
+	 * dispatcher.
+	 */
+	private void installComponents(AnalyticsGateway gateway, UserDetailsResolver userResolver,
+			SourceRevisionResolver revisionResolver) {
+		if (revisionResolver != null) {
+			String refreshParam = filterConfig.getInitParameter("source-revision-refresh");
+			String watchParam = filterConfig.getInitParameter("source-revision-watch");
+			if (refreshParam != null || watchParam != null || "true".equalsIgnoreCase(filterConfig.getInitParameter("source-revision-cache"))) {
+				long refresh = refreshParam == null? 0 : Long.parseLong(refreshParam);
+				revisionResolver = new CachingSourceRevisionResolver(revisionResolver, refresh,
+						watchParam == null? null : new File(watchParam));
+			}
+			if (revisionResolver instanceof CachingSourceRevisionResolver) {
+				((CachingSourceRevisionResolver) revisionResolver).init();
+				System.out.println("AnalyticsFilter: Source revision cached.");
+			}
 		}
-		String sessionAttribute = fConfig.getInitParameter("session-attribute");
-		if (sessionAttribute != null) {
-			this.sessionAttributeName = sessionAttribute;
+
+		int reportLimit = ReportThrottle.DEFAULT_LIMIT;
+		String reportLimitParam = filterConfig.getInitParameter("report-limit");
+		if (reportLimitParam != null) {
+			reportLimit = Integer.parseInt(reportLimitParam);
 		}
-		String excluded = fConfig.getInitParameter("exclude-urls");
-		if (excluded != null) {
-			String[] excludes = excluded.split("[\r\n]+");
-			for (String exclude : excludes) {
-				exclude = exclude.trim();
-				if (!exclude.isEmpty())
-					excludedUrlPatterns.add(Pattern.compile(exclude));
+		if (gateway != null && reportLimit > 0) {
+			long reportWindow = ReportThrottle.DEFAULT_WINDOW;
+			String reportWindowParam = filterConfig.getInitParameter("report-window");
+			if (reportWindowParam != null) {
+				reportWindow = Long.parseLong(reportWindowParam);
 			}
+			int tableSize = ReportThrottle.DEFAULT_TABLE_SIZE;
+			String tableSizeParam = filterConfig.getInitParameter("report-table-size");
+			if (tableSizeParam != null) {
+				tableSize = Integer.parseInt(tableSizeParam);
+			}
+			reportThrottle = new ReportThrottle(reportLimit, reportWindow, tableSize,
+					gateway instanceof ErrorSummaryGateway? (ErrorSummaryGateway) gateway : null);
+			reportThrottle.start();
+			System.out.println("AnalyticsFilter: Reports limited to " + reportLimit + " per error every " + reportWindow + " ms.");
 		}
-		
-		String excludedParms = fConfig.getInitParameter("exclude-params");
-		if (excludedParms != null) {
-			String[] paramExcludes = excludedParms.split("[\r\n]+");
-			for (String exclude : paramExcludes) {
-				exclude = exclude.trim();
-				if (!exclude.isEmpty())
-					excludedParamPatterns.add(Pattern.compile(exclude));
-			}
-		}			
+
+		String spoolDir = filterConfig.getInitParameter("spool-dir");
+		if (gateway != null && spoolDir != null) {
+			if (gateway instanceof AsyncAnalyticsGateway) {
+				System.out.println("AnalyticsFilter: spool-dir ignored, wrap the delegate of the configured AsyncAnalyticsGateway in a SpoolingAnalyticsGateway instead.");
+			} else {
+				spoolingGateway = new SpoolingAnalyticsGateway(gateway, new File(spoolDir));
+				String maxBytes = filterConfig.getInitParameter("spool-max-bytes");
+				if (maxBytes != null) {
+					spoolingGateway.setMaxSpoolBytes(Long.parseLong(maxBytes));
+				}
+				String failureThreshold = filterConfig.getInitParameter("spool-failure-threshold");
+				if (failureThreshold != null) {
+					spoolingGateway.setFailureThreshold(Integer.parseInt(failureThreshold));
+				}
+				String initialBackoff = filterConfig.getInitParameter("spool-initial-backoff");
+				if (initialBackoff != null) {
+					spoolingGateway.setInitialBackoff(Long.parseLong(initialBackoff));
+				}
+				String maxBackoff = filterConfig.getInitParameter("spool-max-backoff");
+				if (maxBackoff != null) {
+					spoolingGateway.setMaxBackoff(Long.parseLong(maxBackoff));
+				}
+				try {
+					spoolingGateway.start();
+					gateway = spoolingGateway;
+					System.out.println("AnalyticsFilter: Spooling reports to " + spoolingGateway.getDirectory().getAbsolutePath());
+				} catch (IOException e) {
+					spoolingGateway = null;
+					System.out.println("AnalyticsFilter: Spool disabled: " + e.getMessage());
+				}
+			}
+		}
+
+		if (gateway != null && !"false".equals(filterConfig.getInitParameter("async-dispatch"))) {
+			if (gateway instanceof AsyncAnalyticsGateway) {
+				asyncGateway = (AsyncAnalyticsGateway) gateway;
+			} else {
+				asyncGateway = new AsyncAnalyticsGateway(gateway);
+				String queueSize = filterConfig.getInitParameter("dispatch-queue-size");
+				if (queueSize != null) {
+					asyncGateway.setQueueSize(Integer.parseInt(queueSize));
+				}
+				String workers = filterConfig.getInitParameter("dispatch-workers");
+				if (workers != null) {
+					asyncGateway.setWorkers(Integer.parseInt(workers));
+				}
+				String batchSize = filterConfig.getInitParameter("dispatch-batch-size");
+				if (batchSize != null) {
+					asyncGateway.setBatchSize(Integer.parseInt(batchSize));
+				}
+				String overflowPolicy = filterConfig.getInitParameter("dispatch-overflow-policy");
+				if (overflowPolicy != null) {
+					asyncGateway.setOverflowPolicy(AsyncAnalyticsGateway.OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase()));
+				}
+				String blockTimeout = filterConfig.getInitParameter("dispatch-block-timeout");
+				if (blockTimeout != null) {
+					asyncGateway.setBlockTimeout(Long.parseLong(blockTimeout));
+				}
+				gateway = asyncGateway;
+			}
+			asyncGateway.start();
+			System.out.println("AnalyticsFilter: Asynchronous dispatch enabled.");
+		}
+
+		userDetailsResolver = userResolver;
+		sourceRevisionResolver = revisionResolver;
+		analyticsGateway = gateway;
+	}
+
+	/**
+	 * @return whether the gateway and resolvers have been looked up, see the
+	 * <code>startup</code> init-param.
+	 */
+	public boolean isComponentsLoaded() {
+		return componentsLoaded;
+	}
+
+	public AsyncAnalyticsGateway getAsyncGateway() {
+		return asyncGateway;
+	}
+
+	public SpoolingAnalyticsGateway getSpoolingGateway() {
+		return spoolingGateway;
+	}
+
+	public ReportThrottle getReportThrottle() {
+		return reportThrottle;
+	}
+
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public RequestSampler getSampler() {
+		return configurationManager.getConfiguration().getSampler();
+	}
+
+	/**
+	 * @return the holder of the settings that can be changed at runtime.
+	 */
+	public ConfigurationManager getConfigurationManager() {
+		return configurationManager;
+	}
+
+	public MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @return the store holding session histories, or <code>null</code> if
+	 * they are kept on the heap.
+	 */
+	public OffHeapHistoryStore getHistoryStore() {
+		return historyStore;
+	}
+
+	/**
+	 * @return the request journal, or <code>null</code> if journaling is off.
+	 */
+	public EventJournal getJournal() {
+		return journal;
 	}
 
 	private String getIp(HttpServletRequest request) {
@@ -16,46 +16,79 @@
  */
 package org.codeconsole.web.analytics;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.io.StringWriter;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class AnalyticsHttpRequest implements Serializable {
 	private static final long serialVersionUID = 1L;
+	private static final ObjectStreamField[] serialPersistentFields = {};
 	
-	private final Date requestTime = new Date();
+	private long requestTime = System.currentTimeMillis();
 	private long completionTime;
-	private final String url;
-	private final String method;
-	private final String queryString;
+	private long processingNanos = -1;
+	private long firstByteNanos = -1;
+	private long filterOverheadNanos = -1;
+	private long requestBytes = -1;
+	private long responseBytes = -1;
+	private double sampleWeight = 1;
+	private String url;
+	private String urlTemplate;
+	private String method;
+	private String queryString;
 	private int status = 0;
-	private final Map<String, String[]> parameterMap;
+	private Map<String, String[]> parameterMap;
 	private WrappedException exception;
-	private final String sourceRevision;
+	private String sourceRevision;
+	private long sequence = -1;
+	private transient long retainedSize = -1;
 		
 	public AnalyticsHttpRequest(String method, String url, String queryString, Map<String, String[]> parameterMap, String sourceRevision) {
 		super();
-		this.method = method;
-		this.url = url;
-		this.queryString = queryString;
+		StringPool pool = StringPool.getShared();
+		this.method = pool.canonicalize(method);
+		this.url = pool.canonicalize(url);
+		this.queryString = pool.canonicalize(queryString);
 		this.parameterMap = new HashMap<String, String[]>();
-		this.parameterMap.putAll(parameterMap);
-		if (queryString != null) {
-			Pattern pattern = Pattern.compile("(\\w+)=");
-			Matcher matcher = pattern.matcher(queryString);
-			while (matcher.find()) {
-				this.parameterMap.remove(matcher.group(1));
+		for (Map.Entry<String, String[]> entry : parameterMap.entrySet()) {
+			if (!ParameterRedactor.isQueryStringKey(queryString, entry.getKey())) {
+				this.parameterMap.put(pool.canonicalize(entry.getKey()), entry.getValue());
 			}
 		}
+		this.sourceRevision = pool.canonicalize(sourceRevision);
+	}
+
+	/**
+	 * Creates a request whose parameters stay a view until the request is
+	 * appended to a session's history.
+	 */
+	AnalyticsHttpRequest(String method, String url, String queryString, ParameterRedactor.View parameters, String sourceRevision) {
+		this.method = method;
+		this.url = url;
+		this.queryString = queryString;
+		this.parameterMap = parameters;
 		this.sourceRevision = sourceRevision;
 	}
 
+	private AnalyticsHttpRequest() { }
+
 	public Date getRequestTime() {
+		return new Date(requestTime);
+	}
+
+	void setRequestTime(long requestTime) {
+		this.requestTime = requestTime;
+	}
+
+	public long getRequestTimeMillis() {
 		return requestTime;
 	}
 
@@ -67,6 +100,18 @@ public class AnalyticsHttpRequest implements Serializable {
 		return url;
 	}
 
+	/**
+	 * @return the route template the URL was normalized to, e.g.
+	 * <code>/orders/{id}</code>, or <code>null</code> if not known.
+	 */
+	public String getUrlTemplate() {
+		return urlTemplate;
+	}
+
+	public void setUrlTemplate(String urlTemplate) {
+		this.urlTemplate = urlTemplate;
+	}
+
 	public String getUrlWithQueryString() {
 		return url + (queryString != null? "?" + queryString : "");
 	}
@@ -83,6 +128,95 @@ public class AnalyticsHttpRequest implements Serializable {
 		this.completionTime = completionTime;
 	}
 
+	public long getCompletionTime() {
+		return completionTime;
+	}
+
+	/**
+	 * @return the time taken to handle the request in milliseconds, measured
+	 * with {@link System#nanoTime()} if available.
+	 */
+	public long getDuration() {
+		return processingNanos >= 0? processingNanos / 1000000 : completionTime - requestTime;
+	}
+
+	/**
+	 * @param processingNanos time from handing the request down the filter
+	 * chain until the response completed.
+	 * @param firstByteNanos time from handing the request down the filter
+	 * chain until the first byte was written or the response committed,
+	 * or -1 if nothing was written.
+	 * @param filterOverheadNanos time spent in the analytics filter itself.
+	 */
+	public void setTiming(long processingNanos, long firstByteNanos, long filterOverheadNanos) {
+		this.processingNanos = processingNanos;
+		this.firstByteNanos = firstByteNanos;
+		this.filterOverheadNanos = filterOverheadNanos;
+	}
+
+	/**
+	 * @return the time taken to handle the request in nanoseconds, or -1 if
+	 * it was not measured.
+	 */
+	public long getProcessingNanos() {
+		return processingNanos;
+	}
+
+	/**
+	 * @return the server think time until the first byte in nanoseconds, or
+	 * -1 if not measured or nothing was written.
+	 */
+	public long getFirstByteNanos() {
+		return firstByteNanos;
+	}
+
+	/**
+	 * @return the time spent writing the response after the first byte in
+	 * nanoseconds, or -1 if not known.
+	 */
+	public long getStreamingNanos() {
+		return firstByteNanos >= 0 && processingNanos >= firstByteNanos? processingNanos - firstByteNanos : -1;
+	}
+
+	/**
+	 * @return the time spent in the analytics filter itself in nanoseconds,
+	 * or -1 if not measured.
+	 */
+	public long getFilterOverheadNanos() {
+		return filterOverheadNanos;
+	}
+
+	public void setSizes(long requestBytes, long responseBytes) {
+		this.requestBytes = requestBytes;
+		this.responseBytes = responseBytes;
+	}
+
+	/**
+	 * @return the size of the request body in bytes, or -1 if not known.
+	 */
+	public long getRequestBytes() {
+		return requestBytes;
+	}
+
+	/**
+	 * @return the size of the response body in bytes, or -1 if not known.
+	 */
+	public long getResponseBytes() {
+		return responseBytes;
+	}
+
+	public void setSampleWeight(double sampleWeight) {
+		this.sampleWeight = sampleWeight;
+	}
+
+	/**
+	 * @return the number of requests this one stands for when history is
+	 * sampled, 1 if every such request is recorded.
+	 */
+	public double getSampleWeight() {
+		return sampleWeight;
+	}
+
 	public void setStatus(int status) {
 		this.status = status;
 	}
@@ -99,45 +233,203 @@ public class AnalyticsHttpRequest implements Serializable {
 		return sourceRevision;
 	}
 
+	void setSourceRevision(String sourceRevision) {
+		this.sourceRevision = sourceRevision;
+	}
+
 	public void setException(Exception exception) {
 		this.exception = new WrappedException(exception);
 	}
 
+	/**
+	 * Copies the parameters out of the container's request if they are still
+	 * a view.  Called when the request is kept in the history.
+	 */
+	void materializeParameters() {
+		Map<String, String[]> parameters = parameterMap;
+		if (parameters instanceof ParameterRedactor.View) {
+			parameterMap = ((ParameterRedactor.View) parameters).materialize();
+		}
+	}
+
+	/**
+	 * @return the estimated heap retained by this request.  Computed once
+	 * the parameters have been materialized, i.e. when the request is
+	 * appended to a history, and not updated afterwards.
+	 */
+	public long getRetainedSize() {
+		long size = retainedSize;
+		if (size < 0) {
+			boolean view = parameterMap instanceof ParameterRedactor.View;
+			size = RetainedSize.OBJECT_HEADER + 8 * 8 + 4 + 8 * RetainedSize.REFERENCE
+					+ RetainedSize.of(url) + RetainedSize.of(urlTemplate) + RetainedSize.of(method)
+					+ RetainedSize.of(queryString) + RetainedSize.of(sourceRevision)
+					+ (view? 0 : RetainedSize.of(parameterMap))
+					+ (exception == null? 0 : exception.getRetainedSize());
+			size = RetainedSize.align(size);
+			if (!view) {
+				retainedSize = size;
+			}
+		}
+		return size;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Writes this request using the string table of <code>writer</code>;
+	 * timestamps are written relative to <code>baseTime</code>.
+	 */
+	void writeCompact(CompactEncoding.Writer writer, long baseTime) throws IOException {
+		DataOutput out = writer.getOutput();
+		CompactEncoding.writeSignedVarLong(out, requestTime - baseTime);
+		CompactEncoding.writeSignedVarLong(out, completionTime - requestTime);
+		writer.writeTableString(method);
+		writer.writeTableString(url);
+		CompactEncoding.writeString(out, queryString);
+		CompactEncoding.writeVarInt(out, status);
+		CompactEncoding.writeVarInt(out, parameterMap.size());
+		for (Map.Entry<String, String[]> entry : parameterMap.entrySet()) {
+			writer.writeTableString(entry.getKey());
+			String[] values = entry.getValue();
+			CompactEncoding.writeVarInt(out, values == null? 0 : values.length + 1);
+			if (values != null) {
+				for (String value : values) {
+					CompactEncoding.writeString(out, value);
+				}
+			}
+		}
+		writer.writeTableString(sourceRevision);
+		writer.writeTableString(urlTemplate);
+		CompactEncoding.writeVarLong(out, processingNanos + 1);
+		CompactEncoding.writeVarLong(out, firstByteNanos + 1);
+		CompactEncoding.writeVarLong(out, filterOverheadNanos + 1);
+		CompactEncoding.writeVarLong(out, requestBytes + 1);
+		CompactEncoding.writeVarLong(out, responseBytes + 1);
+		out.writeBoolean(sampleWeight != 1);
+		if (sampleWeight != 1) {
+			out.writeDouble(sampleWeight);
+		}
+		out.writeBoolean(exception != null);
+		if (exception != null) {
+			exception.writeCompact(writer, requestTime);
+		}
+	}
+
+	static AnalyticsHttpRequest readCompact(CompactEncoding.Reader reader, long baseTime) throws IOException {
+		AnalyticsHttpRequest request = new AnalyticsHttpRequest();
+		request.readCompactFields(reader, baseTime);
+		return request;
+	}
+
+	private void readCompactFields(CompactEncoding.Reader reader, long baseTime) throws IOException {
+		DataInput in = reader.getInput();
+		StringPool pool = StringPool.getShared();
+		requestTime = baseTime + CompactEncoding.readSignedVarLong(in);
+		completionTime = requestTime + CompactEncoding.readSignedVarLong(in);
+		method = pool.canonicalize(reader.readTableString());
+		url = pool.canonicalize(reader.readTableString());
+		queryString = pool.canonicalize(CompactEncoding.readString(in));
+		status = CompactEncoding.readVarInt(in);
+		int parameters = CompactEncoding.readCount(in);
+		parameterMap = new HashMap<String, String[]>(parameters * 2);
+		for (int i = 0; i < parameters; i++) {
+			String key = pool.canonicalize(reader.readTableString());
+			int length = CompactEncoding.readCount(in);
+			String[] values = null;
+			if (length > 0) {
+				values = new String[length - 1];
+				for (int j = 0; j < values.length; j++) {
+					values[j] = CompactEncoding.readString(in);
+				}
+			}
+			parameterMap.put(key, values);
+		}
+		sourceRevision = pool.canonicalize(reader.readTableString());
+		if (reader.getVersion() >= 4) {
+			urlTemplate = pool.canonicalize(reader.readTableString());
+		}
+		if (reader.getVersion() >= 5) {
+			processingNanos = CompactEncoding.readVarLong(in) - 1;
+			firstByteNanos = CompactEncoding.readVarLong(in) - 1;
+			filterOverheadNanos = CompactEncoding.readVarLong(in) - 1;
+		} else {
+			processingNanos = firstByteNanos = filterOverheadNanos = -1;
+		}
+		if (reader.getVersion() >= 6) {
+			requestBytes = CompactEncoding.readVarLong(in) - 1;
+			responseBytes = CompactEncoding.readVarLong(in) - 1;
+		} else {
+			requestBytes = responseBytes = -1;
+		}
+		sampleWeight = reader.getVersion() >= 7 && in.readBoolean()? in.readDouble() : 1;
+		if (in.readBoolean()) {
+			exception = WrappedException.readCompact(reader, requestTime);
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeByte(CompactEncoding.FORMAT_VERSION);
+		writeCompact(new CompactEncoding.Writer(out), 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		sequence = -1;
+		ObjectInputStream.GetField fields = in.readFields();
+		if (fields.getObjectStreamClass().getFields().length > 0) {
+			// stream written before the compact format was introduced
+			Date date = (Date) fields.get("requestTime", null);
+			requestTime = date == null? 0 : date.getTime();
+			completionTime = fields.get("completionTime", 0L);
+			StringPool pool = StringPool.getShared();
+			url = pool.canonicalize((String) fields.get("url", null));
+			method = pool.canonicalize((String) fields.get("method", null));
+			queryString = pool.canonicalize((String) fields.get("queryString", null));
+			status = fields.get("status", 0);
+			Map<String, String[]> parameters = (Map<String, String[]>) fields.get("parameterMap", null);
+			parameterMap = new HashMap<String, String[]>();
+			if (parameters != null) {
+				for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+					parameterMap.put(pool.canonicalize(entry.getKey()), entry.getValue());
+				}
+			}
+			exception = (WrappedException) fields.get("exception", null);
+			sourceRevision = pool.canonicalize((String) fields.get("sourceRevision", null));
+			processingNanos = firstByteNanos = filterOverheadNanos = -1;
+			requestBytes = responseBytes = -1;
+			sampleWeight = 1;
+			return;
+		}
+		int version = in.readUnsignedByte();
+		CompactEncoding.checkVersion(version);
+		readCompactFields(new CompactEncoding.Reader(in, version), 0);
+	}
+
 	public String toString() {
-    	StringBuilder url = new StringBuilder(new SimpleDateFormat("MM-dd-yyyy h:mm:ss a").format(requestTime));
-        url.append(" (");
-        url.append(getMethod());
-        url.append(") - ");
-        url.append(getUrlWithQueryString());
-        url.append(" ");
-        for (Iterator<Map.Entry<String, String[]>> it = getParameterMap().entrySet().iterator(); it.hasNext();) {
-        	url.append('{');
-        	Map.Entry<String, String[]> entry = it.next();
-        	url.append(entry.getKey());
-        	url.append(":");
-        	for (int i = 0; i < entry.getValue().length;) {
-        		url.append(entry.getValue()[i]);
-        		if (i++ < entry.getValue().length)
-        			url.append(',');
-        	}
-        	url.deleteCharAt(url.length()-1);
-        	url.append("}");
-        }
-        url.append(" (" + getStatus() + " - " + (completionTime-requestTime.getTime()) + " ms)");            
-        return url.toString();		
+		StringWriter out = new StringWriter(128);
+		try {
+			ReportRenderer.getInstance().writeRequest(this, out, false);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
 	}	
 	
 	public String toHtmlString() {
-		String s = toString();
-		int start = s.indexOf(") -") + 4;
-	   	StringBuilder url = new StringBuilder();
-		url.append(s.substring(0, start));
-	   	url.append("<a href=\"");
-        url.append(getUrlWithQueryString());
-        url.append("\">");
-        url.append(getUrlWithQueryString());
-        url.append("</a>");		
-        url.append(s.substring(s.indexOf(" ", start)));
-        return url.toString();
+		StringWriter out = new StringWriter(256);
+		try {
+			ReportRenderer.getInstance().writeRequest(this, out, true);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
 	}
 }
@@ -16,31 +16,64 @@
  */
 package org.codeconsole.web.analytics;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.StringWriter;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 
 public class AnalyticsSession implements Serializable {
 	private static final long serialVersionUID = 1L;
+	private static final ObjectStreamField[] serialPersistentFields = {};
 	
-	private final long creationTime = System.currentTimeMillis();
-    private final String referer;
-    private final String ip;
-    private final int maxHistorySize; 
+	private long creationTime = System.currentTimeMillis();
+    private String referer;
+    private String ip;
+    private int maxHistorySize; 
     
     private Serializable userDetails;
 
-    private Queue<AnalyticsHttpRequest> history = new LinkedList<AnalyticsHttpRequest>();
+    private volatile History history;
+    // key of the history in an OffHeapHistoryStore, null if it is kept on the heap
+    private String historyKey;
+
+    // replication bookkeeping, see SessionReplicator
+    private transient volatile boolean modified;
+    private transient long replicatedAppendCount;
+    private transient long replicatedFirstSequence;
+    private boolean historyDetached;
+    private transient long detachedFirstSequence;
+    private transient volatile boolean historyRestored = true;
+    private transient volatile MemoryBudget.Account account;
+    // version of the user details last resolved, see VersionedUserDetailsResolver
+    private transient volatile Object userDetailsVersion;
+    // shared by all appended requests until the revision changes
+    private transient volatile String sourceRevision;
     
     public AnalyticsSession(int maxHistorySize, String referer, String ip) {
         this.maxHistorySize = maxHistorySize;
         this.referer = referer;
         this.ip = ip;
+        this.history = new HistoryBuffer(maxHistorySize);
+    }
+
+    /**
+     * Creates a session whose history is kept in <code>store</code>.
+     */
+    public AnalyticsSession(int maxHistorySize, String referer, String ip, OffHeapHistoryStore store) {
+        this.maxHistorySize = maxHistorySize;
+        this.referer = referer;
+        this.ip = ip;
+        this.historyKey = store.newKey();
+        this.history = new OffHeapHistory(store, historyKey, maxHistorySize);
     }
     
     private Map<String, Object> properties = new HashMap<String, Object>();
@@ -50,6 +83,16 @@ public class AnalyticsSession implements Serializable {
     }
     public void setProperties(Map<String, Object> properties) {
         this.properties = properties;
+        this.modified = true;
+    }
+    /**
+     * Sets a property and marks the session for replication.  Callers that
+     * change the map returned by {@link #getProperties()} directly must call
+     * {@link #markModified()} themselves.
+     */
+    public void setProperty(String name, Object value) {
+        properties.put(name, value);
+        this.modified = true;
     }
     public String getReferer() {
         return referer;
@@ -65,116 +108,326 @@ public class AnalyticsSession implements Serializable {
 	}
 	public void setUserDetails(Serializable userDetails) {
 		this.userDetails = userDetails;
+		this.modified = true;
+	}
+	Object getUserDetailsVersion() {
+		return userDetailsVersion;
+	}
+	void setUserDetailsVersion(Object userDetailsVersion) {
+		this.userDetailsVersion = userDetailsVersion;
 	}
 	public void appendHistory(AnalyticsHttpRequest url) {
-        history.add(url);
-        if (history.size() > maxHistorySize)
-            history.remove();
+		History history = this.history;
+		if (history instanceof HistoryBuffer) {
+			url.materializeParameters();
+		} // otherwise encoded straight from the parameter view
+		String revision = url.getSourceRevision();
+		if (revision != null) {
+			String current = sourceRevision;
+			if (revision.equals(current)) {
+				url.setSourceRevision(current);
+			} else {
+				sourceRevision = revision;
+			}
+		}
+        history.offer(url);
+		MemoryBudget.Account account = this.account;
+		if (account != null) {
+			account.update(history);
+		}
     }
+	/**
+	 * @return a queue view of the history.  Iteration works on a snapshot,
+	 * so it is safe while other requests of the session are being recorded.
+	 */
 	public Queue<AnalyticsHttpRequest> getHistory() {
 		return history;
 	}
+	/**
+	 * @return the retained history, oldest first, as of the time of the call.
+	 */
+	public List<AnalyticsHttpRequest> getHistorySnapshot() {
+		return history.snapshot();
+	}
+	public int getMaxHistorySize() {
+		return maxHistorySize;
+	}
 	public AnalyticsHttpRequest getLastRequest() {
-		AnalyticsHttpRequest last = null;
-		for (AnalyticsHttpRequest request: history) {
-			last = request;
-		}
-		return last;
+		return history.getLastRequest();
 	}
 	public AnalyticsHttpRequest getLastException() {
-		AnalyticsHttpRequest last = null;
-		for (AnalyticsHttpRequest request: history) {
-			if (request.getWrappedException() != null) {
-				last = request;
-			}
-		}
-		return last;
+		return history.getLastException();
 	}	
 	public void clear() {
 		history.clear();
+		this.modified = true;
+		MemoryBudget.Account account = this.account;
+		if (account != null) {
+			account.update(history);
+		}
+	}
+	/**
+	 * @return the estimated heap retained by the history.
+	 */
+	public long getRetainedBytes() {
+		return history.getRetainedBytes();
+	}
+	/**
+	 * Starts accounting for the history in <code>budget</code>, once per
+	 * session instance.
+	 */
+	synchronized void attachBudget(MemoryBudget budget) {
+		if (account == null) {
+			MemoryBudget.Account account = budget.register(this);
+			account.update(history);
+			this.account = account;
+		}
+	}
+	boolean hasBudget() {
+		return account != null;
+	}
+	/**
+	 * Evicts the oldest entries until at most <code>maxBytes</code> are
+	 * retained, called by the {@link MemoryBudget}.
+	 * @return the number of entries evicted.
+	 */
+	int trimHistory(long maxBytes) {
+		History history = this.history;
+		int evicted = history.trimTo(maxBytes);
+		MemoryBudget.Account account = this.account;
+		if (account != null) {
+			account.set(history.getRetainedBytes());
+		}
+		return evicted;
+	}
+	/**
+	 * Flags state outside of the history as changed, so it is replicated
+	 * with the next request.
+	 */
+	public void markModified() {
+		this.modified = true;
+	}
+	/**
+	 * @return whether anything changed since the session attribute was last
+	 * replicated.
+	 */
+	public boolean isDirty() {
+		return modified || (historyKey == null && history.getAppendCount() != replicatedAppendCount);
+	}
+	/**
+	 * @return the number of requests ever appended to the history.
+	 */
+	public long getAppendCount() {
+		return history.getAppendCount();
+	}
+	synchronized boolean takeModified() {
+		boolean wasModified = modified;
+		modified = false;
+		return wasModified;
+	}
+	long getReplicatedAppendCount() {
+		return replicatedAppendCount;
+	}
+	long getReplicatedFirstSequence() {
+		return replicatedFirstSequence;
+	}
+	synchronized void markReplicated(long appendCount, long firstSequence) {
+		this.replicatedAppendCount = Math.max(replicatedAppendCount, appendCount);
+		this.replicatedFirstSequence = Math.max(replicatedFirstSequence, firstSequence);
+	}
+	long getFirstSequence() {
+		return history.getFirstSequence();
+	}
+	/**
+	 * @return whether the history is kept in an {@link OffHeapHistoryStore}
+	 * and left out of the serialized session.
+	 */
+	public boolean isHistoryOffHeap() {
+		return historyKey != null;
+	}
+	/**
+	 * @return whether the history of a deserialized session still needs to
+	 * be reattached to its store.
+	 */
+	boolean needsHistoryStore() {
+		return historyKey != null && !(history instanceof OffHeapHistory);
+	}
+	/**
+	 * Reattaches the history of a deserialized session to the store.  The
+	 * history is only found again if the store still holds it, i.e. the
+	 * session was not moved to another server or passivated across a restart.
+	 * Without a store the session falls back to a history on the heap.
+	 */
+	synchronized void attachHistory(OffHeapHistoryStore store) {
+		if (!needsHistoryStore()) {
+			return;
+		}
+		if (store == null) {
+			historyKey = null;
+			modified = true;
+		} else {
+			history = new OffHeapHistory(store, historyKey, maxHistorySize);
+		}
+	}
+	/**
+	 * Frees the off-heap history and returns the heap history's share of the
+	 * {@link MemoryBudget}, called when the session is destroyed.
+	 */
+	public void releaseHistory() {
+		History history = this.history;
+		if (history instanceof OffHeapHistory) {
+			((OffHeapHistory) history).release();
+		}
+		MemoryBudget.Account account = this.account;
+		if (account != null) {
+			account.release();
+		}
+	}
+	/**
+	 * @return a read-only copy of this session as of now, with the history
+	 * on the heap, for handing to gateways that send it later or on another
+	 * thread.  Later requests and clears of this session do not affect it.
+	 */
+	public AnalyticsSession snapshot() {
+		AnalyticsSession copy = new AnalyticsSession(0, referer, ip);
+		copy.maxHistorySize = maxHistorySize;
+		copy.creationTime = creationTime;
+		copy.userDetails = userDetails;
+		copy.properties = new HashMap<String, Object>(properties);
+		copy.history = new HistorySnapshot(history);
+		return copy;
+	}
+	boolean isHistoryDetached() {
+		return historyDetached;
+	}
+	/**
+	 * When detached, the history is not part of the serialized session and is
+	 * replicated separately in segments.
+	 */
+	void setHistoryDetached(boolean historyDetached) {
+		this.historyDetached = historyDetached;
+	}
+	long getDetachedFirstSequence() {
+		return detachedFirstSequence;
+	}
+	boolean isHistoryRestored() {
+		return historyRestored;
+	}
+	/**
+	 * Replaces the history of a deserialized, detached session with the
+	 * entries recovered from its replicated segments.
+	 */
+	synchronized void restoreHistory(long firstSequence, List<AnalyticsHttpRequest> entries) {
+		if (historyRestored) {
+			return;
+		}
+		HistoryBuffer restored = new HistoryBuffer(maxHistorySize, firstSequence);
+		for (AnalyticsHttpRequest request : entries) {
+			restored.offer(request);
+		}
+		history = restored;
+		if (account != null) {
+			account.update(restored);
+		}
+		replicatedAppendCount = restored.getAppendCount();
+		replicatedFirstSequence = restored.getFirstSequence();
+		historyRestored = true;
 	}
 	public String toString() {
-		StringBuilder report = new StringBuilder();
-		report.append("Analytics Report\n");
-		report.append("\nSession Start Time: " + new SimpleDateFormat("MM-dd-yyyy h:mm:ss a").format(new Date(this.getCreationTime())));
-		report.append("\nTotal Online Time: " + new DecimalFormat("#.##").format((System.currentTimeMillis() - this.getCreationTime()) / (60.0 * 1000.0)) + " minutes");
-		report.append("\nIP Address: " + this.getIp());
-		report.append("\nReferer: " + this.getReferer());
-		report.append("\nHistory");
-		AnalyticsHttpRequest last = null;
-		for (AnalyticsHttpRequest request : history) {
-			report.append("\n");
-			report.append(request.toString());
-	        if (request.getWrappedException() != null) {
-	        	report.append("\n"+request.getWrappedException().getException().toString());
-	        }			
-			last = request;
-		}
-		if (last != null && last.getWrappedException() != null) {
-			report.append("\nLast Exception\n\n");
-			report.append(last.getWrappedException().getStackTrace());
-		}
-		if (last != null && last.getSourceRevision() != null) {
-			report.append("\n\nSource Revision\n");
-			report.append(last.getSourceRevision());
-		}			
-		if (userDetails != null) {
-			report.append("\n\nUser Information\n");
-			report.append(userDetails.toString());
-		}		
-		return report.toString();		
+		return render(ReportRenderer.Format.TEXT);
 	}
 	public String getHtmlString() {
 		return this.toHtmlString();
 	}
 	
 	public String toHtmlString() {
-		StringBuilder report = new StringBuilder();
-		report.append("<html><body>");
-		report.append("<h1>Analytics Report</h1>");
-		report.append("<div>");
-		report.append("Session Start Time: " + new SimpleDateFormat("MM-dd-yyyy h:mm:ss a").format(new Date(this.getCreationTime())));
-		report.append("</div><div>");
-		report.append("Total Online Time: " + new DecimalFormat("#.##").format((System.currentTimeMillis() - this.getCreationTime()) / (60.0 * 1000.0)) + " minutes");
-		report.append("</div><div>");
-		report.append("IP Address: " + this.getIp());
-		report.append("</div><div>");
-		report.append("Referer: " + this.getReferer());
-		report.append("</div>");
-		report.append("<h3>History</h3>");
-		report.append("<ul>");
-		AnalyticsHttpRequest last = null;
-		for (AnalyticsHttpRequest request : history) {
-			report.append("<li>");
-			report.append(request.toHtmlString());
-	        if (request.getWrappedException() != null) {
-	        	report.append(" <strong>"+request.getWrappedException().getException().toString()+"</strong>");
-	        }			
-			report.append("</li>");
-			if (request.getWrappedException() != null) {
-				last = request;
-			}
+		return "<html><body>" + render(ReportRenderer.Format.HTML) + "</body></html>";
+	}
+	private String render(ReportRenderer.Format format) {
+		StringWriter report = new StringWriter(1024);
+		try {
+			ReportRenderer.getInstance().render(this, report, format);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
 		}
-		report.append("</ul>");
+		return report.toString();
+	}
 
-		if (last != null && last.getWrappedException() != null) {
-			report.append("<h3>Last Exception</h3><pre>");
-			report.append(last.getWrappedException().getStackTrace());
-			report.append("</pre>");
-		}
-		
-		if (last != null && last.getSourceRevision() != null) {
-			report.append("<h3>Source Revision</h3><pre>");
-			report.append(last.getSourceRevision());
-			report.append("</pre>");
-		}		
-		
-		if (userDetails != null) {
-			report.append("<h3>User Information</h3><pre>");
-			report.append(userDetails.toString());
-			report.append("</pre>");
-		}
-		report.append("</body></html>");
-		return report.toString();		
-	}	
+	/**
+	 * Writes the session in the compact format described by
+	 * {@link CompactEncoding}.  History entries share one string table and
+	 * store their timestamps relative to the session creation time.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeByte(CompactEncoding.FORMAT_VERSION);
+		CompactEncoding.Writer writer = new CompactEncoding.Writer(out);
+		DataOutput data = writer.getOutput();
+		data.writeLong(creationTime);
+		CompactEncoding.writeString(data, referer);
+		CompactEncoding.writeString(data, ip);
+		CompactEncoding.writeVarInt(data, maxHistorySize);
+		data.writeBoolean(historyDetached);
+		if (historyDetached) {
+			CompactEncoding.writeVarLong(data, history.getFirstSequence());
+		}
+		CompactEncoding.writeString(data, historyKey);
+		List<AnalyticsHttpRequest> snapshot = historyDetached || historyKey != null?
+				Collections.<AnalyticsHttpRequest>emptyList() : history.snapshot();
+		CompactEncoding.writeVarInt(data, snapshot.size());
+		for (AnalyticsHttpRequest request : snapshot) {
+			request.writeCompact(writer, creationTime);
+		}
+		out.writeObject(userDetails);
+		out.writeObject(properties);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		if (fields.getObjectStreamClass().getFields().length > 0) {
+			// stream written before the compact format was introduced
+			creationTime = fields.get("creationTime", 0L);
+			referer = (String) fields.get("referer", null);
+			ip = (String) fields.get("ip", null);
+			maxHistorySize = fields.get("maxHistorySize", 50);
+			userDetails = (Serializable) fields.get("userDetails", null);
+			properties = (Map<String, Object>) fields.get("properties", null);
+			history = new HistoryBuffer(maxHistorySize);
+			Iterable<AnalyticsHttpRequest> legacy = (Iterable<AnalyticsHttpRequest>) fields.get("history", null);
+			if (legacy != null) {
+				for (AnalyticsHttpRequest request : legacy) {
+					history.offer(request);
+				}
+			}
+		} else {
+			int version = in.readUnsignedByte();
+			CompactEncoding.checkVersion(version);
+			CompactEncoding.Reader reader = new CompactEncoding.Reader(in, version);
+			DataInput data = reader.getInput();
+			creationTime = data.readLong();
+			referer = CompactEncoding.readString(data);
+			ip = CompactEncoding.readString(data);
+			maxHistorySize = CompactEncoding.readVarInt(data);
+			historyDetached = version >= 2 && data.readBoolean();
+			if (historyDetached) {
+				detachedFirstSequence = CompactEncoding.readVarLong(data);
+			}
+			// off-heap histories are reattached by the filter, see attachHistory
+			historyKey = version >= 8? CompactEncoding.readString(data) : null;
+			history = new HistoryBuffer(maxHistorySize);
+			int entries = CompactEncoding.readVarInt(data);
+			for (int i = 0; i < entries; i++) {
+				history.offer(AnalyticsHttpRequest.readCompact(reader, creationTime));
+			}
+			userDetails = (Serializable) in.readObject();
+			properties = (Map<String, Object>) in.readObject();
+		}
+		if (properties == null) {
+			properties = new HashMap<String, Object>();
+		}
+		historyRestored = !historyDetached;
+		replicatedAppendCount = history.getAppendCount();
+		replicatedFirstSequence = history.getFirstSequence();
+	}
 }
@@ -0,0 +1,53 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.Enumeration;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+/**
+ * Frees the off-heap history of sessions as soon as they are destroyed,
+ * instead of leaving it to the eviction of the {@link OffHeapHistoryStore},
+ * and removes heap histories from the {@link MemoryBudget} without waiting
+ * for the garbage collector.  Register it in <code>web.xml</code>:
+ * <pre>
+ * &lt;listener&gt;
+ *     &lt;listener-class&gt;org.codeconsole.web.analytics.AnalyticsSessionListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ */
+public class AnalyticsSessionListener implements HttpSessionListener {
+
+	public void sessionCreated(HttpSessionEvent event) { }
+
+	public void sessionDestroyed(HttpSessionEvent event) {
+		HttpSession session = event.getSession();
+		try {
+			for (Enumeration<?> names = session.getAttributeNames(); names.hasMoreElements();) {
+				Object value = session.getAttribute((String) names.nextElement());
+				if (value instanceof AnalyticsSession) {
+					((AnalyticsSession) value).releaseHistory();
+				}
+			}
+		} catch (IllegalStateException alreadyInvalidated) {
+			// some containers invalidate the session before notifying listeners
+		}
+	}
+}
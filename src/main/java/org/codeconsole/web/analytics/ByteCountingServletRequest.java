@@ -0,0 +1,143 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Counts the bytes of a request body whose length is not known up front,
+ * i.e. one sent with chunked transfer encoding.  Bytes are counted as the
+ * application reads them; characters read through the reader are
+ * converted to their encoded size.
+ */
+public class ByteCountingServletRequest extends HttpServletRequestWrapper {
+
+	private long bytesRead;
+	private ServletInputStream inputStream;
+	private BufferedReader reader;
+
+	public ByteCountingServletRequest(HttpServletRequest request) {
+		super(request);
+	}
+
+	/**
+	 * @return the size of the request body: the declared content length if
+	 * there is one, otherwise the number of bytes read so far.
+	 */
+	public static long getBodySize(HttpServletRequest request) {
+		if (request instanceof ByteCountingServletRequest) {
+			return ((ByteCountingServletRequest) request).bytesRead;
+		}
+		return Math.max(0, request.getContentLength());
+	}
+
+	/**
+	 * @return whether the body size of <code>request</code> can only be
+	 * found by counting.
+	 */
+	public static boolean needsCounting(HttpServletRequest request) {
+		return request.getContentLength() < 0 && request.getHeader("Transfer-Encoding") != null;
+	}
+
+	public ServletInputStream getInputStream() throws IOException {
+		if (inputStream == null) {
+			inputStream = new CountingInputStream(super.getInputStream());
+		}
+		return inputStream;
+	}
+
+	public BufferedReader getReader() throws IOException {
+		if (reader == null) {
+			reader = new BufferedReader(new CountingReader(super.getReader(), EncodedSize.mode(getCharacterEncoding())));
+		}
+		return reader;
+	}
+
+	private final class CountingInputStream extends ServletInputStream {
+		private final ServletInputStream in;
+
+		CountingInputStream(ServletInputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				bytesRead++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0) {
+				bytesRead += read;
+			}
+			return read;
+		}
+
+		public int readLine(byte[] b, int off, int len) throws IOException {
+			int read = in.readLine(b, off, len);
+			if (read > 0) {
+				bytesRead += read;
+			}
+			return read;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			bytesRead += skipped;
+			return skipped;
+		}
+
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private final class CountingReader extends Reader {
+		private final Reader in;
+		private final int encoding;
+
+		CountingReader(Reader in, int encoding) {
+			this.in = in;
+			this.encoding = encoding;
+		}
+
+		public int read(char[] buf, int off, int len) throws IOException {
+			int read = in.read(buf, off, len);
+			if (read > 0) {
+				bytesRead += EncodedSize.of(buf, off, read, encoding);
+			}
+			return read;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
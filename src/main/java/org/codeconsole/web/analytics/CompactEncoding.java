@@ -0,0 +1,230 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Primitives of the compact wire format shared by {@link AnalyticsSession},
+ * {@link AnalyticsHttpRequest} and {@link WrappedException}: LEB128 varints,
+ * zig-zag encoded signed values, and a string table so that URLs, methods
+ * and parameter names repeated across history entries are written once.
+ * <p>
+ * A table string is written as varint 0 for <code>null</code>, 1 followed by
+ * the UTF-8 bytes for a first occurrence, or <code>index + 2</code> for a
+ * back reference.
+ * <p>
+ * Lengths and counts read back are checked before anything is allocated
+ * for them, so corrupt data fails with an {@link IOException}: long strings
+ * are read in chunks and end with an <code>EOFException</code> where the
+ * data does, and counts are limited to {@link #MAX_COUNT}.
+ */
+public final class CompactEncoding {
+
+	public static final int FORMAT_VERSION = 8;
+
+	/**
+	 * Largest number of parameters, parameter values or stack frames read
+	 * back for one request.
+	 */
+	public static final int MAX_COUNT = 1 << 20;
+
+	private static final String UTF8 = "UTF-8";
+	private static final int CHUNK_SIZE = 8192;
+
+	private CompactEncoding() { }
+
+	public static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	public static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new InvalidObjectException("Malformed varint");
+	}
+
+	public static void writeVarInt(DataOutput out, int value) throws IOException {
+		writeVarLong(out, value & 0xFFFFFFFFL);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		return (int) readVarLong(in);
+	}
+
+	/**
+	 * Reads a count written as a varint, such as the number of parameters.
+	 * @throws InvalidObjectException if it is negative or above
+	 * {@link #MAX_COUNT} + 1, which leaves room for counts stored plus one.
+	 */
+	public static int readCount(DataInput in) throws IOException {
+		int count = readVarInt(in);
+		if (count < 0 || count > MAX_COUNT + 1) {
+			throw new InvalidObjectException("Invalid count " + count);
+		}
+		return count;
+	}
+
+	public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	public static long readSignedVarLong(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes a string that is not worth putting in the string table, such as
+	 * a parameter value.
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			writeVarInt(out, 0);
+		} else {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarInt(out, bytes.length + 1);
+			out.write(bytes);
+		}
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in);
+		if (length == 0) {
+			return null;
+		}
+		return new String(readBytes(in, length - 1), UTF8);
+	}
+
+	private static byte[] readBytes(DataInput in, int length) throws IOException {
+		if (length < 0) {
+			throw new InvalidObjectException("Invalid length " + length);
+		}
+		if (length <= CHUNK_SIZE) {
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return bytes;
+		}
+		// grows with the data actually read, a corrupt length does not allocate up front
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		while (length > 0) {
+			int read = Math.min(length, CHUNK_SIZE);
+			in.readFully(chunk, 0, read);
+			bytes.write(chunk, 0, read);
+			length -= read;
+		}
+		return bytes.toByteArray();
+	}
+
+	public static void checkVersion(int version) throws InvalidObjectException {
+		if (version < 1 || version > FORMAT_VERSION) {
+			throw new InvalidObjectException("Unsupported analytics format version " + version);
+		}
+	}
+
+	public static class Writer {
+		private final DataOutput out;
+		private final Map<String, Integer> table = new HashMap<String, Integer>();
+
+		public Writer(DataOutput out) {
+			this.out = out;
+		}
+
+		public DataOutput getOutput() {
+			return out;
+		}
+
+		public void writeTableString(String value) throws IOException {
+			if (value == null) {
+				writeVarInt(out, 0);
+				return;
+			}
+			Integer index = table.get(value);
+			if (index != null) {
+				writeVarInt(out, index.intValue() + 2);
+			} else {
+				table.put(value, Integer.valueOf(table.size()));
+				byte[] bytes = value.getBytes(UTF8);
+				writeVarInt(out, 1);
+				writeVarInt(out, bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+
+	public static class Reader {
+		private final DataInput in;
+		private final int version;
+		private final List<String> table = new ArrayList<String>();
+
+		public Reader(DataInput in) {
+			this(in, FORMAT_VERSION);
+		}
+
+		/**
+		 * @param version format version the data was written with
+		 */
+		public Reader(DataInput in, int version) {
+			this.in = in;
+			this.version = version;
+		}
+
+		public DataInput getInput() {
+			return in;
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		public String readTableString() throws IOException {
+			int tag = readVarInt(in);
+			if (tag == 0) {
+				return null;
+			}
+			if (tag == 1) {
+				String value = new String(readBytes(in, readVarInt(in)), UTF8);
+				table.add(value);
+				return value;
+			}
+			int index = tag - 2;
+			if (index >= table.size()) {
+				throw new InvalidObjectException("Invalid string table reference " + index);
+			}
+			return table.get(index);
+		}
+	}
+}
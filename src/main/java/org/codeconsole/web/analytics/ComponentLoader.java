@@ -0,0 +1,211 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.util.Enumeration;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import org.codeconsole.web.analytics.integration.AnalyticsGateway;
+import org.codeconsole.web.analytics.integration.SourceRevisionResolver;
+import org.codeconsole.web.analytics.integration.UserDetailsResolver;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Looks up the pluggable components of the {@link AnalyticsFilter}: the
+ * <code>analyticsGateway</code>, <code>userDetailsResolver</code> and
+ * <code>sourceRevisionResolver</code>.
+ */
+public class ComponentLoader {
+
+	/**
+	 * Where the components come from.
+	 */
+	public enum Wiring {
+		/** Beans of a private context, or of the root web context if the configuration is missing. */
+		SPRING,
+		/** Beans of the root web application context only; no private context is built. */
+		WEB,
+		/**
+		 * Classes named by the <code>*-class</code> init-params, or else by
+		 * <code>META-INF/services/</code> files named after the interface.
+		 * Neither Spring nor any other container is involved.
+		 */
+		SERVICES
+	}
+
+	/**
+	 * When the components are looked up.
+	 */
+	public enum Startup {
+		/** While the filter is initialized. */
+		EAGER,
+		/** By the first request, which waits for it. */
+		LAZY,
+		/** By a background thread started by the filter; requests are recorded but not reported until it is done. */
+		BACKGROUND
+	}
+
+	public static final String GATEWAY_CLASS = "analytics-gateway-class";
+	public static final String USER_DETAILS_RESOLVER_CLASS = "user-details-resolver-class";
+	public static final String SOURCE_REVISION_RESOLVER_CLASS = "source-revision-resolver-class";
+
+	private AnalyticsGateway analyticsGateway;
+	private UserDetailsResolver userDetailsResolver;
+	private SourceRevisionResolver sourceRevisionResolver;
+
+	public AnalyticsGateway getAnalyticsGateway() {
+		return analyticsGateway;
+	}
+
+	public UserDetailsResolver getUserDetailsResolver() {
+		return userDetailsResolver;
+	}
+
+	public SourceRevisionResolver getSourceRevisionResolver() {
+		return sourceRevisionResolver;
+	}
+
+	/**
+	 * Loads the beans from a private context built from
+	 * <code>springConfiguration</code>, falling back to the root web
+	 * application context, or from the root web application context only.
+	 */
+	public void loadBeans(String springConfiguration, ServletContext servletContext, boolean privateContext) {
+		ApplicationContext context = null;
+		if (privateContext) {
+			try {
+				context = new ClassPathXmlApplicationContext(springConfiguration);
+			} catch (BeanDefinitionStoreException notfound) {
+				System.out.println("AnalyticsFilter: Could not locate context configuration: "+springConfiguration + ". Attempting to load root Web Application Context.");
+			}
+		}
+		if (context == null) {
+			context = WebApplicationContextUtils.getWebApplicationContext(servletContext);
+		}
+		System.out.println("AnalyticsFilter: Loading bean definitions.");
+		if (context != null) {
+			if (context.containsBean("analyticsGateway")) {
+				analyticsGateway = context.getBean("analyticsGateway", AnalyticsGateway.class);
+				System.out.println("AnalyticsFilter: Gateway loaded.");
+			} else {
+				System.out.println("AnalyticsFilter: Could not a bean named 'analyticsGateway'. Analytics will not be sent!");
+			}
+			
+			if (context.containsBean("userDetailsResolver")) {
+				userDetailsResolver = context.getBean("userDetailsResolver", UserDetailsResolver.class); 
+				System.out.println("AnalyticsFilter: UserDetailsResolver loaded.");
+			}
+
+			if (context.containsBean("sourceRevisionResolver")) {
+				sourceRevisionResolver = context.getBean("sourceRevisionResolver", SourceRevisionResolver.class); 
+				System.out.println("AnalyticsFilter: SourceRevisionResolver loaded.");
+			}
+		} else {
+			System.out.println("AnalyticsFilter: Could not load root Web Application Context.");
+		}
+	}
+
+	/**
+	 * Instantiates the components named by the <code>*-class</code>
+	 * init-params or by service files, using their public no-arg
+	 * constructors.
+	 * @param classNames the init-param values, indexed like the components:
+	 * gateway, user details resolver, source revision resolver.
+	 */
+	public void loadServices(String[] classNames, ClassLoader classLoader) throws ServletException {
+		analyticsGateway = load(AnalyticsGateway.class, classNames[0], classLoader);
+		if (analyticsGateway != null) {
+			System.out.println("AnalyticsFilter: Gateway loaded.");
+		} else {
+			System.out.println("AnalyticsFilter: No " + GATEWAY_CLASS + " or service configured. Analytics will not be sent!");
+		}
+		userDetailsResolver = load(UserDetailsResolver.class, classNames[1], classLoader);
+		if (userDetailsResolver != null) {
+			System.out.println("AnalyticsFilter: UserDetailsResolver loaded.");
+		}
+		sourceRevisionResolver = load(SourceRevisionResolver.class, classNames[2], classLoader);
+		if (sourceRevisionResolver != null) {
+			System.out.println("AnalyticsFilter: SourceRevisionResolver loaded.");
+		}
+	}
+
+	private static <T> T load(Class<T> type, String className, ClassLoader classLoader) throws ServletException {
+		if (className == null) {
+			className = findService(type, classLoader);
+			if (className == null) {
+				return null;
+			}
+		}
+		try {
+			return type.cast(Class.forName(className.trim(), true, classLoader).getConstructor().newInstance());
+		} catch (ClassNotFoundException e) {
+			throw new ServletException("Could not load " + type.getSimpleName() + " " + className, e);
+		} catch (NoSuchMethodException e) {
+			throw new ServletException("Could not instantiate " + type.getSimpleName() + " " + className, e);
+		} catch (InvocationTargetException e) {
+			throw new ServletException("Could not instantiate " + type.getSimpleName() + " " + className, e.getCause());
+		} catch (InstantiationException e) {
+			throw new ServletException("Could not instantiate " + type.getSimpleName() + " " + className, e);
+		} catch (IllegalAccessException e) {
+			throw new ServletException("Could not instantiate " + type.getSimpleName() + " " + className, e);
+		} catch (ClassCastException e) {
+			throw new ServletException(className + " is not a " + type.getName(), e);
+		}
+	}
+
+	/**
+	 * @return the first class named in the first
+	 * <code>META-INF/services/</code> file for <code>type</code>, in the
+	 * format used by <code>java.util.ServiceLoader</code>.
+	 */
+	static String findService(Class<?> type, ClassLoader classLoader) throws ServletException {
+		try {
+			Enumeration<URL> files = classLoader.getResources("META-INF/services/" + type.getName());
+			while (files.hasMoreElements()) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(files.nextElement().openStream(), "UTF-8"));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						int comment = line.indexOf('#');
+						if (comment >= 0) {
+							line = line.substring(0, comment);
+						}
+						line = line.trim();
+						if (line.length() > 0) {
+							return line;
+						}
+					}
+				} finally {
+					in.close();
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new ServletException("Could not read the services for " + type.getName(), e);
+		}
+	}
+}
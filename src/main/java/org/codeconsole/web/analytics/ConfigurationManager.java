@@ -0,0 +1,134 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link FilterConfiguration} of a filter and swaps it
+ * atomically.  Requests read the snapshot once and use it to the end, so
+ * they never see a half-applied change.  Concurrent updates are applied
+ * one after another on top of each other.
+ */
+public class ConfigurationManager implements ConfigurationManagerMBean {
+
+	private final AtomicReference<FilterConfiguration> configuration;
+	private final AtomicLong version = new AtomicLong(1);
+
+	public ConfigurationManager(FilterConfiguration configuration) {
+		this.configuration = new AtomicReference<FilterConfiguration>(configuration);
+	}
+
+	public FilterConfiguration getConfiguration() {
+		return configuration.get();
+	}
+
+	/**
+	 * Applies <code>changes</code> to the current configuration.  The new
+	 * snapshot, including its compiled patterns, is built on the calling
+	 * thread.
+	 * @return the new configuration.
+	 * @throws IllegalArgumentException if a setting is unknown or invalid.
+	 */
+	public FilterConfiguration apply(Map<String, String> changes) {
+		while (true) {
+			FilterConfiguration current = configuration.get();
+			FilterConfiguration next = current.with(changes);
+			if (configuration.compareAndSet(current, next)) {
+				version.incrementAndGet();
+				System.out.println("AnalyticsFilter: Configuration changed: " + changes.keySet());
+				return next;
+			}
+		}
+	}
+
+	public String getSettings() {
+		return getConfiguration().toString();
+	}
+
+	public long getVersion() {
+		return version.get();
+	}
+
+	public int getHistorySize() {
+		return getConfiguration().getMaxHistorySize();
+	}
+
+	public void setHistorySize(int historySize) {
+		set("history-size", String.valueOf(historySize));
+	}
+
+	public String getSessionAttribute() {
+		return getConfiguration().getSessionAttributeName();
+	}
+
+	public void setSessionAttribute(String sessionAttribute) {
+		set("session-attribute", sessionAttribute);
+	}
+
+	public String getExcludeUrls() {
+		return getConfiguration().getParameter("exclude-urls");
+	}
+
+	public void setExcludeUrls(String excludeUrls) {
+		set("exclude-urls", excludeUrls);
+	}
+
+	public String getExcludeParams() {
+		return getConfiguration().getParameter("exclude-params");
+	}
+
+	public void setExcludeParams(String excludeParams) {
+		set("exclude-params", excludeParams);
+	}
+
+	public String getRouteTemplates() {
+		return getConfiguration().getParameter("route-templates");
+	}
+
+	public void setRouteTemplates(String routeTemplates) {
+		set("route-templates", routeTemplates);
+	}
+
+	public String getSampling() {
+		return getConfiguration().getParameter("sampling");
+	}
+
+	public void setSampling(String sampling) {
+		set("sampling", sampling);
+	}
+
+	public String validate(String settings) {
+		try {
+			getConfiguration().with(FilterConfiguration.parseSettings(settings));
+			return null;
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+	}
+
+	public void update(String settings) {
+		apply(FilterConfiguration.parseSettings(settings));
+	}
+
+	private void set(String name, String value) {
+		apply(Collections.singletonMap(name, value));
+	}
+}
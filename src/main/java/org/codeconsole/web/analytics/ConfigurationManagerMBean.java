@@ -0,0 +1,74 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+/**
+ * Management interface of the {@link ConfigurationManager}.  Setting an
+ * attribute, or calling {@link #update(String)}, builds and validates a
+ * complete new {@link FilterConfiguration} before it replaces the current
+ * one; an invalid value changes nothing.
+ */
+public interface ConfigurationManagerMBean {
+
+	/**
+	 * @return the current settings, see {@link FilterConfiguration#toString()}.
+	 */
+	public String getSettings();
+
+	/**
+	 * @return the number of configurations applied since the filter started.
+	 */
+	public long getVersion();
+
+	public int getHistorySize();
+
+	public void setHistorySize(int historySize);
+
+	public String getSessionAttribute();
+
+	public void setSessionAttribute(String sessionAttribute);
+
+	public String getExcludeUrls();
+
+	public void setExcludeUrls(String excludeUrls);
+
+	public String getExcludeParams();
+
+	public void setExcludeParams(String excludeParams);
+
+	public String getRouteTemplates();
+
+	public void setRouteTemplates(String routeTemplates);
+
+	public String getSampling();
+
+	public void setSampling(String sampling);
+
+	/**
+	 * @param settings <code>name=value</code> lines in the format of
+	 * {@link #getSettings()}; settings not mentioned are kept.
+	 * @return an error message, or <code>null</code> if the settings are valid.
+	 */
+	public String validate(String settings);
+
+	/**
+	 * Applies all <code>settings</code> at once, in the format of
+	 * {@link #getSettings()}; settings not mentioned are kept.
+	 * @throws IllegalArgumentException if any of them is invalid.
+	 */
+	public void update(String settings);
+}
@@ -0,0 +1,80 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+/**
+ * Computes how many bytes characters take in a given character encoding
+ * without encoding them.  UTF-8 and UTF-16 are counted exactly; any other
+ * encoding is assumed to use one byte per character.
+ */
+final class EncodedSize {
+
+	static final int SINGLE_BYTE = 0;
+	static final int UTF_8 = 1;
+	static final int UTF_16 = 2;
+
+	private EncodedSize() { }
+
+	static int mode(String encoding) {
+		if (encoding == null) {
+			return SINGLE_BYTE; // ISO-8859-1 is the servlet default
+		}
+		String normalized = encoding.trim().toUpperCase();
+		if (normalized.equals("UTF-8") || normalized.equals("UTF8")) {
+			return UTF_8;
+		}
+		if (normalized.startsWith("UTF-16") || normalized.startsWith("UTF16")) {
+			return UTF_16;
+		}
+		return SINGLE_BYTE;
+	}
+
+	static int of(int c, int mode) {
+		if (mode == UTF_8) {
+			if (c < 0x80) {
+				return 1;
+			}
+			if (c < 0x800 || (c >= 0xD800 && c <= 0xDFFF)) {
+				return 2; // a surrogate pair takes 4 bytes
+			}
+			return 3;
+		}
+		return mode == UTF_16? 2 : 1;
+	}
+
+	static long of(CharSequence chars, int off, int len, int mode) {
+		if (mode != UTF_8) {
+			return mode == UTF_16? 2L * len : len;
+		}
+		long size = 0;
+		for (int i = off; i < off + len; i++) {
+			size += of(chars.charAt(i), mode);
+		}
+		return size;
+	}
+
+	static long of(char[] chars, int off, int len, int mode) {
+		if (mode != UTF_8) {
+			return mode == UTF_16? 2L * len : len;
+		}
+		long size = 0;
+		for (int i = off; i < off + len; i++) {
+			size += of(chars[i], mode);
+		}
+		return size;
+	}
+}
@@ -0,0 +1,94 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Occurrence counts of an error whose full reports were suppressed by the
+ * {@link ReportThrottle} during one summary period.
+ */
+public class ErrorSummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String exceptionType;
+	private final String fileName;
+	private final String methodName;
+	private final Integer lineNumber;
+	private final long occurrences;
+	private final long suppressed;
+	private final long firstSeen;
+	private final long lastSeen;
+
+	public ErrorSummary(String exceptionType, String fileName, String methodName, Integer lineNumber,
+			long occurrences, long suppressed, long firstSeen, long lastSeen) {
+		this.exceptionType = exceptionType;
+		this.fileName = fileName;
+		this.methodName = methodName;
+		this.lineNumber = lineNumber;
+		this.occurrences = occurrences;
+		this.suppressed = suppressed;
+		this.firstSeen = firstSeen;
+		this.lastSeen = lastSeen;
+	}
+
+	public String getExceptionType() {
+		return exceptionType;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	public Integer getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * @return the number of times the error was raised during the period.
+	 */
+	public long getOccurrences() {
+		return occurrences;
+	}
+
+	/**
+	 * @return the number of those occurrences whose report was not sent.
+	 */
+	public long getSuppressed() {
+		return suppressed;
+	}
+
+	public Date getFirstSeen() {
+		return new Date(firstSeen);
+	}
+
+	public Date getLastSeen() {
+		return new Date(lastSeen);
+	}
+
+	public String toString() {
+		SimpleDateFormat format = new SimpleDateFormat("MM-dd-yyyy h:mm:ss a");
+		return exceptionType + " at " + methodName + "(" + fileName + ":" + lineNumber + ") - " + occurrences +
+				" occurrences, " + suppressed + " suppressed (" + format.format(getFirstSeen()) + " - " + format.format(getLastSeen()) + ")";
+	}
+}
@@ -0,0 +1,388 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Append-only journal of recorded requests, kept in memory-mapped segment
+ * files of <code>segmentSize</code> bytes for post-incident analysis with
+ * {@link JournalReader}.
+ * <p>
+ * Request threads encode their entry and hand it to a lock-free queue; a
+ * single writer thread copies entries into the current segment and rolls
+ * over to a new one when it is full, deleting the oldest segments beyond
+ * <code>maxSegments</code>.  Segments are only forced to disk when they are
+ * rolled over or the journal is closed, so a process crash loses nothing
+ * but an operating system crash may lose the tail of the current segment.
+ * <p>
+ * Segment layout: a {@value #HEADER_SIZE} byte header (magic, format
+ * version of the {@link CompactEncoding} payloads, creation time) followed
+ * by records of
+ * <pre>
+ * int length | long requestTime | int status | byte flags | payload
+ * </pre>
+ * where <code>length</code> covers everything after itself and the payload
+ * is the session key followed by the compact encoding of the request.  A
+ * zero length marks the end of the written data.
+ * <p>
+ * Session ids are never written: the session key is a truncated HMAC of the
+ * id under a random secret that only lives in memory, so records of the same
+ * session can be correlated within one journal but the ids, which would let
+ * anyone reading the files take over live sessions, cannot be recovered.
+ */
+public class EventJournal {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	static final int MAGIC = 0x414a524e; // "AJRN"
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 1;
+	static final byte FLAG_FAILED = 1;
+	static final String SUFFIX = ".journal";
+	static final int SESSION_KEY_BYTES = 12;
+	static final int SESSION_KEY_CACHE_SIZE = 10000;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	static final FilenameFilter SEGMENTS = new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+			return name.endsWith(SUFFIX);
+		}
+	};
+
+	private final File directory;
+	private final long segmentSize;
+	private final int maxSegments;
+	private final int queueSize;
+	// guarded by itself; only used once per session thanks to the cache
+	private final Mac sessionMac;
+	private final ConcurrentMap<String, String> sessionKeys = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger cachedSessionKeys = new AtomicInteger();
+
+	private final Queue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile Thread writer;
+	private volatile boolean running;
+	private volatile boolean idle;
+
+	// owned by the writer thread
+	private long segmentNumber;
+	private MappedByteBuffer segment;
+
+	private final AtomicLong appended = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long written;
+	private volatile long segmentsCreated;
+	private volatile long segmentsDeleted;
+
+	public EventJournal(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, DEFAULT_QUEUE_SIZE);
+	}
+
+	public EventJournal(File directory, long segmentSize, int maxSegments, int queueSize) {
+		if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(1, maxSegments);
+		this.queueSize = queueSize;
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		try {
+			this.sessionMac = Mac.getInstance("HmacSHA256");
+			this.sessionMac.init(new SecretKeySpec(secret, "HmacSHA256"));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates the directory and starts the writer thread.  New segments are
+	 * numbered after the ones already in the directory, which are never
+	 * appended to.
+	 */
+	public synchronized void start() throws IOException {
+		if (writer != null) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + directory);
+		}
+		File[] existing = listSegments(directory);
+		segmentNumber = existing.length == 0? 0 : segmentNumber(existing[existing.length - 1]);
+		running = true;
+		writer = new Thread(new Writer(), "AnalyticsJournal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues <code>request</code> for writing.  Encoding happens on the
+	 * calling thread since the parameters may still be a view of the
+	 * container's request; nothing else is done until the writer picks it up.
+	 * @return whether the entry was queued, false if the queue is full.
+	 */
+	public boolean append(String sessionId, AnalyticsHttpRequest request) {
+		if (!running) {
+			return false;
+		}
+		if (pending.incrementAndGet() > queueSize) {
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		queue.offer(encode(sessionKey(sessionId), request));
+		appended.incrementAndGet();
+		if (idle) {
+			LockSupport.unpark(writer);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the hex encoded, truncated HMAC of <code>sessionId</code>
+	 * that is journaled in its place.
+	 */
+	String sessionKey(String sessionId) {
+		String cached = sessionKeys.get(sessionId);
+		if (cached != null) {
+			return cached;
+		}
+		byte[] hash;
+		try {
+			byte[] id = sessionId.getBytes("UTF-8");
+			synchronized (sessionMac) {
+				hash = sessionMac.doFinal(id);
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		char[] key = new char[SESSION_KEY_BYTES * 2];
+		for (int i = 0; i < SESSION_KEY_BYTES; i++) {
+			key[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			key[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+		String sessionKey = new String(key);
+		if (cachedSessionKeys.incrementAndGet() > SESSION_KEY_CACHE_SIZE) {
+			sessionKeys.clear();
+			cachedSessionKeys.set(1);
+		}
+		sessionKeys.put(sessionId, sessionKey);
+		return sessionKey;
+	}
+
+	static byte[] encode(String sessionKey, AnalyticsHttpRequest request) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0); // length, patched below
+			out.writeLong(request.getRequestTimeMillis());
+			out.writeInt(request.getStatus());
+			out.writeByte(request.getWrappedException() != null? FLAG_FAILED : 0);
+			CompactEncoding.Writer writer = new CompactEncoding.Writer(out);
+			CompactEncoding.writeString(out, sessionKey);
+			request.writeCompact(writer, request.getRequestTimeMillis());
+			out.flush();
+			byte[] record = bytes.toByteArray();
+			int length = record.length - 4;
+			record[0] = (byte) (length >>> 24);
+			record[1] = (byte) (length >>> 16);
+			record[2] = (byte) (length >>> 8);
+			record[3] = (byte) length;
+			return record;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private class Writer implements Runnable {
+		public void run() {
+			try {
+				while (running || !queue.isEmpty()) {
+					byte[] record = queue.poll();
+					if (record == null) {
+						idle = true;
+						if (queue.isEmpty() && running) {
+							LockSupport.parkNanos(100000000L);
+						}
+						idle = false;
+						continue;
+					}
+					pending.decrementAndGet();
+					write(record);
+				}
+			} catch (IOException e) {
+				running = false;
+				System.out.println("AnalyticsFilter: Journal stopped: " + e);
+			} finally {
+				closeSegment();
+			}
+		}
+	}
+
+	private void write(byte[] record) throws IOException {
+		if (record.length > segmentSize - HEADER_SIZE) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (segment == null || segment.remaining() < record.length) {
+			roll();
+		}
+		segment.put(record);
+		written++;
+	}
+
+	private void roll() throws IOException {
+		closeSegment();
+		File file = new File(directory, segmentName(++segmentNumber));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+		segment.putInt(MAGIC);
+		segment.put((byte) CompactEncoding.FORMAT_VERSION);
+		segment.put(new byte[3]);
+		segment.putLong(System.currentTimeMillis());
+		segmentsCreated++;
+		File[] segments = listSegments(directory);
+		for (int i = 0; i < segments.length - maxSegments; i++) {
+			if (segments[i].delete()) {
+				segmentsDeleted++;
+			} else {
+				System.out.println("AnalyticsFilter: Could not delete journal segment " + segments[i]);
+			}
+		}
+	}
+
+	private void closeSegment() {
+		if (segment != null) {
+			segment.force();
+			segment = null;
+		}
+	}
+
+	static String segmentName(long number) {
+		String digits = Long.toString(number);
+		StringBuilder name = new StringBuilder("analytics-");
+		for (int i = digits.length(); i < 12; i++) {
+			name.append('0');
+		}
+		return name.append(digits).append(SUFFIX).toString();
+	}
+
+	static long segmentNumber(File segment) {
+		String name = segment.getName();
+		try {
+			return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - SUFFIX.length()));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the segments in <code>directory</code>, oldest first.
+	 */
+	static File[] listSegments(File directory) {
+		File[] segments = directory.listFiles(SEGMENTS);
+		if (segments == null) {
+			return new File[0];
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Stops the writer after it has written whatever is still queued, waiting
+	 * at most <code>timeout</code> ms.
+	 */
+	public synchronized void close(long timeout) {
+		Thread writer = this.writer;
+		if (writer == null || !running) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	public int getPending() {
+		return pending.get();
+	}
+
+	public long getAppendedCount() {
+		return appended.get();
+	}
+
+	public long getWrittenCount() {
+		return written;
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getSegmentsCreated() {
+		return segmentsCreated;
+	}
+
+	public long getSegmentsDeleted() {
+		return segmentsDeleted;
+	}
+}
@@ -0,0 +1,292 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+
+/**
+ * Immutable snapshot of the filter settings that may be changed while the
+ * filter is running.  Everything derived from them (the exclusion
+ * matchers, route templates, sampler and replicator) is built, and every
+ * pattern compiled, when the snapshot is created, so a request only ever
+ * reads a finished snapshot through one volatile reference.  Settings that
+ * own threads or files (journal, spool, history store, dispatch) are only
+ * read by {@link AnalyticsFilter#init(FilterConfig)}.
+ * <p>
+ * A snapshot derived with {@link #with(Map)} shares the route normalizer
+ * and the sampler of its predecessor unless their own settings changed, so
+ * learned templates and sampling state survive unrelated changes.
+ * <p>
+ * Settings use the names and formats of the filter's init-params.  Invalid
+ * values fail the constructor with an {@link IllegalArgumentException}, so a
+ * snapshot that exists is always valid.
+ */
+public final class FilterConfiguration {
+
+	public static final int DEFAULT_HISTORY_SIZE = 50;
+	public static final String DEFAULT_SESSION_ATTRIBUTE = "analyticsSession";
+
+	/**
+	 * Names of the settings held by a snapshot.
+	 */
+	public static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList(
+			"history-size", "session-attribute", "replication", "replication-segment-size",
+			"exclude-urls", "exclude-urls-cache-size", "exclude-params", "route-templates", "route-max-templates",
+			"sampling", "sampling-rate", "sampling-min-rate", "sampling-target-rate", "sampling-target-overhead",
+			"sampling-slow-threshold"));
+
+	private final Map<String, String> parameters;
+
+	private final int maxHistorySize;
+	private final String sessionAttributeName;
+	private final SessionReplicator sessionReplicator;
+	private final UrlExclusionMatcher excludedUrls;
+	private final ParameterRedactor parameterRedactor;
+	private final RouteNormalizer routeNormalizer;
+	private final RequestSampler sampler;
+
+	/**
+	 * @param parameters settings by name; missing or <code>null</code>
+	 * values take their defaults.
+	 * @throws IllegalArgumentException for unknown names or invalid values,
+	 * including invalid patterns.
+	 */
+	public FilterConfiguration(Map<String, String> parameters) {
+		this(parameters, null);
+	}
+
+	private FilterConfiguration(Map<String, String> parameters, FilterConfiguration previous) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : parameters.entrySet()) {
+			if (!NAMES.contains(entry.getKey())) {
+				throw new IllegalArgumentException("Unknown setting: " + entry.getKey());
+			}
+			if (entry.getValue() != null) {
+				values.put(entry.getKey(), entry.getValue());
+			}
+		}
+		this.parameters = Collections.unmodifiableMap(values);
+
+		String historySize = values.get("history-size");
+		this.maxHistorySize = historySize == null? DEFAULT_HISTORY_SIZE : Integer.parseInt(historySize.trim());
+		if (maxHistorySize < 0) {
+			throw new IllegalArgumentException("history-size must not be negative: " + maxHistorySize);
+		}
+		String sessionAttribute = values.get("session-attribute");
+		this.sessionAttributeName = sessionAttribute == null? DEFAULT_SESSION_ATTRIBUTE : sessionAttribute;
+		SessionReplicator.Mode replicationMode = SessionReplicator.Mode.FULL;
+		String replication = values.get("replication");
+		if (replication != null) {
+			replicationMode = SessionReplicator.Mode.valueOf(replication.trim().toUpperCase());
+		}
+		int segmentSize = SessionReplicator.DEFAULT_SEGMENT_SIZE;
+		String segmentSizeParam = values.get("replication-segment-size");
+		if (segmentSizeParam != null) {
+			segmentSize = Integer.parseInt(segmentSizeParam.trim());
+		}
+		this.sessionReplicator = new SessionReplicator(sessionAttributeName, replicationMode, segmentSize);
+
+		int cacheSize = UrlExclusionMatcher.DEFAULT_CACHE_SIZE;
+		String cacheSizeParam = values.get("exclude-urls-cache-size");
+		if (cacheSizeParam != null) {
+			cacheSize = Integer.parseInt(cacheSizeParam.trim());
+		}
+		this.excludedUrls = new UrlExclusionMatcher(split(values.get("exclude-urls")), cacheSize);
+		this.parameterRedactor = new ParameterRedactor(split(values.get("exclude-params")));
+
+		if (previous != null && previous.hasSettings("route-", values)) {
+			this.routeNormalizer = previous.routeNormalizer;
+		} else {
+			int maxTemplates = RouteNormalizer.DEFAULT_MAX_TEMPLATES;
+			String maxTemplatesParam = values.get("route-max-templates");
+			if (maxTemplatesParam != null) {
+				maxTemplates = Integer.parseInt(maxTemplatesParam.trim());
+			}
+			this.routeNormalizer = new RouteNormalizer(split(values.get("route-templates")), maxTemplates);
+		}
+
+		if (previous != null && previous.hasSettings("sampling", values)) {
+			this.sampler = previous.sampler;
+		} else {
+			this.sampler = createSampler(values);
+		}
+	}
+
+	private static RequestSampler createSampler(Map<String, String> values) {
+		RequestSampler.Mode samplingMode = RequestSampler.Mode.OFF;
+		String sampling = values.get("sampling");
+		if (sampling != null) {
+			samplingMode = RequestSampler.Mode.valueOf(sampling.trim().toUpperCase());
+		}
+		String rateParam = values.get("sampling-rate");
+		double rate = rateParam == null? 1 : Double.parseDouble(rateParam);
+		String minRateParam = values.get("sampling-min-rate");
+		double minRate = minRateParam == null? Math.min(rate, RequestSampler.DEFAULT_MIN_RATE) : Double.parseDouble(minRateParam);
+		String targetRateParam = values.get("sampling-target-rate");
+		double targetRate = targetRateParam == null? 0 : Double.parseDouble(targetRateParam);
+		String targetOverheadParam = values.get("sampling-target-overhead");
+		long targetOverhead = targetOverheadParam == null? 0 : Long.parseLong(targetOverheadParam.trim()) * 1000;
+		String slowThresholdParam = values.get("sampling-slow-threshold");
+		long slowThreshold = slowThresholdParam == null? RequestSampler.DEFAULT_SLOW_THRESHOLD : Long.parseLong(slowThresholdParam.trim());
+		return sampling == null?
+				new RequestSampler(RequestSampler.Mode.OFF, 1, 1, 0, 0, RequestSampler.DEFAULT_SLOW_THRESHOLD) :
+				new RequestSampler(samplingMode, rate, minRate, targetRate, targetOverhead, slowThreshold);
+	}
+
+	/**
+	 * @return whether the settings whose names start with <code>prefix</code>
+	 * have the same values in <code>values</code> as in this snapshot.
+	 */
+	private boolean hasSettings(String prefix, Map<String, String> values) {
+		for (String name : NAMES) {
+			if (name.startsWith(prefix)) {
+				String value = values.get(name);
+				String current = parameters.get(name);
+				if (value == null? current != null : !value.equals(current)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the snapshot described by the init-params of <code>config</code>.
+	 */
+	public static FilterConfiguration from(FilterConfig config) {
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		for (String name : NAMES) {
+			parameters.put(name, config.getInitParameter(name));
+		}
+		return new FilterConfiguration(parameters);
+	}
+
+	/**
+	 * @param changes settings to replace; a <code>null</code> or empty value
+	 * restores the default.
+	 * @return a new snapshot with the other settings of this one.
+	 */
+	public FilterConfiguration with(Map<String, String> changes) {
+		Map<String, String> parameters = new LinkedHashMap<String, String>(this.parameters);
+		for (Map.Entry<String, String> entry : changes.entrySet()) {
+			String value = entry.getValue();
+			parameters.put(entry.getKey(), value == null || value.trim().length() == 0? null : value);
+		}
+		return new FilterConfiguration(parameters, this);
+	}
+
+	public FilterConfiguration with(String name, String value) {
+		return with(Collections.singletonMap(name, value));
+	}
+
+	private static List<String> split(String rules) {
+		List<String> split = new ArrayList<String>();
+		if (rules != null) {
+			for (String rule : rules.split("[\r\n]+")) {
+				rule = rule.trim();
+				if (rule.length() > 0) {
+					split.add(rule);
+				}
+			}
+		}
+		return split;
+	}
+
+	/**
+	 * @return the settings that were given, by name.
+	 */
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	public String getParameter(String name) {
+		return parameters.get(name);
+	}
+
+	/**
+	 * @return the history size of sessions created with this snapshot;
+	 * existing sessions keep theirs.
+	 */
+	public int getMaxHistorySize() {
+		return maxHistorySize;
+	}
+
+	public String getSessionAttributeName() {
+		return sessionAttributeName;
+	}
+
+	public SessionReplicator getSessionReplicator() {
+		return sessionReplicator;
+	}
+
+	public UrlExclusionMatcher getExcludedUrls() {
+		return excludedUrls;
+	}
+
+	public ParameterRedactor getParameterRedactor() {
+		return parameterRedactor;
+	}
+
+	public RouteNormalizer getRouteNormalizer() {
+		return routeNormalizer;
+	}
+
+	public RequestSampler getSampler() {
+		return sampler;
+	}
+
+	/**
+	 * @return the settings as <code>name=value</code> lines, with line
+	 * breaks inside values written as <code>\n</code>.  The inverse of
+	 * {@link #parseSettings(String)}.
+	 */
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, String> entry : parameters.entrySet()) {
+			out.append(entry.getKey()).append('=').append(entry.getValue().replaceAll("[\r\n]+", "\\\\n")).append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return the settings of <code>name=value</code> lines as written by
+	 * {@link #toString()}, ignoring blank lines and <code>#</code> comments.
+	 * An empty value restores the default.
+	 */
+	public static Map<String, String> parseSettings(String settings) {
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
+		for (String line : settings.split("[\r\n]+")) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			int separator = line.indexOf('=');
+			if (separator <= 0) {
+				throw new IllegalArgumentException("Expected name=value: " + line);
+			}
+			parameters.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim().replace("\\n", "\n"));
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,59 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Storage of a session's request history: {@link HistoryBuffer} on the heap
+ * or {@link OffHeapHistory} in an {@link OffHeapHistoryStore}.
+ */
+interface History extends Queue<AnalyticsHttpRequest> {
+
+	/**
+	 * @return the retained requests, oldest first, as of the time of the call.
+	 */
+	List<AnalyticsHttpRequest> snapshot();
+
+	AnalyticsHttpRequest getLastRequest();
+
+	AnalyticsHttpRequest getLastException();
+
+	/**
+	 * @return the sequence number of the oldest entry still retained.
+	 */
+	long getFirstSequence();
+
+	/**
+	 * @return the total number of requests ever appended.
+	 */
+	long getAppendCount();
+
+	/**
+	 * @return the estimated heap retained by the entries, see
+	 * {@link AnalyticsHttpRequest#getRetainedSize()}.
+	 */
+	long getRetainedBytes();
+
+	/**
+	 * Evicts the oldest entries until at most <code>maxBytes</code> of heap
+	 * are retained.
+	 * @return the number of entries evicted.
+	 */
+	int trimTo(long maxBytes);
+}
@@ -0,0 +1,228 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity, array backed ring buffer of requests.  Appends claim a slot
+ * with a single atomic increment and never block, so parallel requests of the
+ * same session can record concurrently.  Each request remembers the sequence
+ * number it was stored under; readers use it to skip slots that are still
+ * being written or have already been overwritten, which gives them a
+ * consistent snapshot without locking.
+ * <p>
+ * The buffer is also exposed as a read-mostly {@link java.util.Queue} for
+ * callers of {@link AnalyticsSession#getHistory()}.
+ * <p>
+ * The estimated size of the retained entries is tracked so that
+ * {@link #trimTo(long)} can evict the oldest ones to stay within a byte
+ * budget; eviction moves the floor up like {@link #clear()} does.
+ */
+public class HistoryBuffer extends AbstractQueue<AnalyticsHttpRequest> implements History, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final int capacity;
+	private final AtomicReferenceArray<AnalyticsHttpRequest> slots;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong floor = new AtomicLong();
+	private final AtomicReference<AnalyticsHttpRequest> lastRequest = new AtomicReference<AnalyticsHttpRequest>();
+	private final AtomicReference<AnalyticsHttpRequest> lastException = new AtomicReference<AnalyticsHttpRequest>();
+	private final AtomicLong retainedBytes = new AtomicLong();
+
+	public HistoryBuffer(int capacity) {
+		this(capacity, 0);
+	}
+
+	/**
+	 * Creates a buffer whose first entry will be stored under
+	 * <code>firstSequence</code>, used when restoring replicated history.
+	 */
+	public HistoryBuffer(int capacity, long firstSequence) {
+		this.capacity = Math.max(1, capacity);
+		this.slots = new AtomicReferenceArray<AnalyticsHttpRequest>(this.capacity);
+		this.sequence.set(firstSequence);
+		this.floor.set(firstSequence);
+	}
+
+	public boolean offer(AnalyticsHttpRequest request) {
+		long seq = sequence.getAndIncrement();
+		request.setSequence(seq);
+		AnalyticsHttpRequest overwritten = slots.getAndSet((int) (seq % capacity), request);
+		retainedBytes.addAndGet(request.getRetainedSize() - (overwritten == null? 0 : overwritten.getRetainedSize()));
+		advance(lastRequest, request);
+		if (request.getWrappedException() != null) {
+			advance(lastException, request);
+		}
+		return true;
+	}
+
+	private static void advance(AtomicReference<AnalyticsHttpRequest> ref, AnalyticsHttpRequest request) {
+		for (;;) {
+			AnalyticsHttpRequest current = ref.get();
+			if (current != null && current.getSequence() > request.getSequence()) {
+				return;
+			}
+			if (ref.compareAndSet(current, request)) {
+				return;
+			}
+		}
+	}
+
+	private boolean isRetained(AnalyticsHttpRequest request) {
+		return request != null && request.getSequence() >= lowestRetained();
+	}
+
+	private long lowestRetained() {
+		return Math.max(floor.get(), sequence.get() - capacity);
+	}
+
+	public AnalyticsHttpRequest getLastRequest() {
+		AnalyticsHttpRequest last = lastRequest.get();
+		return isRetained(last)? last : null;
+	}
+
+	public AnalyticsHttpRequest getLastException() {
+		AnalyticsHttpRequest last = lastException.get();
+		return isRetained(last)? last : null;
+	}
+
+	/**
+	 * @return the retained requests, oldest first, as of the time of the call.
+	 */
+	public List<AnalyticsHttpRequest> snapshot() {
+		long hi = sequence.get();
+		long lo = Math.max(floor.get(), hi - capacity);
+		if (hi <= lo) {
+			return Collections.emptyList();
+		}
+		List<AnalyticsHttpRequest> snapshot = new ArrayList<AnalyticsHttpRequest>((int) (hi - lo));
+		for (long seq = lo; seq < hi; seq++) {
+			AnalyticsHttpRequest request = slots.get((int) (seq % capacity));
+			if (request != null && request.getSequence() == seq) {
+				snapshot.add(request);
+			}
+		}
+		return Collections.unmodifiableList(snapshot);
+	}
+
+	public Iterator<AnalyticsHttpRequest> iterator() {
+		return snapshot().iterator();
+	}
+
+	public int size() {
+		long hi = sequence.get();
+		return (int) Math.max(0, hi - Math.max(floor.get(), hi - capacity));
+	}
+
+	/**
+	 * @return the sequence number of the oldest entry still retained.
+	 */
+	public long getFirstSequence() {
+		return lowestRetained();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the sequence number the next appended request will get, which
+	 * is the total number of requests ever appended.
+	 */
+	public long getAppendCount() {
+		return sequence.get();
+	}
+
+	public AnalyticsHttpRequest peek() {
+		List<AnalyticsHttpRequest> snapshot = snapshot();
+		return snapshot.isEmpty()? null : snapshot.get(0);
+	}
+
+	/**
+	 * Removes the oldest entry by moving the floor past it, as
+	 * {@link #trimTo(long)} does; slots still being written are skipped.
+	 */
+	public AnalyticsHttpRequest poll() {
+		for (;;) {
+			long currentFloor = floor.get();
+			long hi = sequence.get();
+			long lo = Math.max(currentFloor, hi - capacity);
+			if (hi <= lo) {
+				return null;
+			}
+			if (!floor.compareAndSet(currentFloor, lo + 1)) {
+				continue;
+			}
+			int index = (int) (lo % capacity);
+			AnalyticsHttpRequest request = slots.get(index);
+			if (request != null && request.getSequence() == lo && slots.compareAndSet(index, request, null)) {
+				retainedBytes.addAndGet(-request.getRetainedSize());
+				return request;
+			}
+		}
+	}
+
+	public void clear() {
+		long cleared = sequence.get();
+		floor.set(cleared);
+		for (int i = 0; i < capacity; i++) {
+			AnalyticsHttpRequest request = slots.get(i);
+			if (request != null && request.getSequence() < cleared) {
+				// leave entries appended while clearing in place
+				if (slots.compareAndSet(i, request, null)) {
+					retainedBytes.addAndGet(-request.getRetainedSize());
+				}
+			}
+		}
+	}
+
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+
+	public int trimTo(long maxBytes) {
+		int evicted = 0;
+		while (retainedBytes.get() > maxBytes) {
+			long currentFloor = floor.get();
+			long hi = sequence.get();
+			long lo = Math.max(currentFloor, hi - capacity);
+			if (hi <= lo) {
+				break;
+			}
+			if (!floor.compareAndSet(currentFloor, lo + 1)) {
+				continue;
+			}
+			int index = (int) (lo % capacity);
+			AnalyticsHttpRequest request = slots.get(index);
+			// a slot still being written is accounted for when it is overwritten
+			if (request != null && request.getSequence() == lo && slots.compareAndSet(index, request, null)) {
+				retainedBytes.addAndGet(-request.getRetainedSize());
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+}
@@ -0,0 +1,84 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Run of consecutive history entries stored under its own session attribute
+ * when the history is replicated in delta mode.  Segments are never modified
+ * once created; the newest one is replaced while it fills up.
+ */
+final class HistorySegment implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final ObjectStreamField[] serialPersistentFields = {};
+
+	private long firstSequence;
+	private List<AnalyticsHttpRequest> entries;
+
+	HistorySegment(long firstSequence, List<AnalyticsHttpRequest> entries) {
+		this.firstSequence = firstSequence;
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	long getFirstSequence() {
+		return firstSequence;
+	}
+
+	List<AnalyticsHttpRequest> getEntries() {
+		return entries;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeByte(CompactEncoding.FORMAT_VERSION);
+		CompactEncoding.Writer writer = new CompactEncoding.Writer(out);
+		DataOutput data = writer.getOutput();
+		CompactEncoding.writeVarLong(data, firstSequence);
+		CompactEncoding.writeVarInt(data, entries.size());
+		long baseTime = entries.isEmpty()? 0 : entries.get(0).getRequestTimeMillis();
+		data.writeLong(baseTime);
+		for (AnalyticsHttpRequest request : entries) {
+			request.writeCompact(writer, baseTime);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int version = in.readUnsignedByte();
+		CompactEncoding.checkVersion(version);
+		CompactEncoding.Reader reader = new CompactEncoding.Reader(in, version);
+		DataInput data = reader.getInput();
+		firstSequence = CompactEncoding.readVarLong(data);
+		int size = CompactEncoding.readVarInt(data);
+		long baseTime = data.readLong();
+		List<AnalyticsHttpRequest> read = new ArrayList<AnalyticsHttpRequest>(size);
+		for (int i = 0; i < size; i++) {
+			read.add(AnalyticsHttpRequest.readCompact(reader, baseTime));
+		}
+		entries = Collections.unmodifiableList(read);
+	}
+}
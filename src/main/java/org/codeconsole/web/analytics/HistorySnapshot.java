@@ -0,0 +1,99 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Read-only copy of a history as of one point in time, held by the
+ * sessions returned by {@link AnalyticsSession#snapshot()}.  The entries
+ * are shared with the live history but the list of them is not, so later
+ * appends, evictions and clears of the session do not show through.
+ */
+final class HistorySnapshot extends AbstractQueue<AnalyticsHttpRequest> implements History {
+
+	private final List<AnalyticsHttpRequest> entries;
+	private final long appendCount;
+
+	HistorySnapshot(History history) {
+		this.entries = history.snapshot();
+		this.appendCount = entries.isEmpty()? 0 : entries.get(entries.size() - 1).getSequence() + 1;
+	}
+
+	public List<AnalyticsHttpRequest> snapshot() {
+		return entries;
+	}
+
+	public Iterator<AnalyticsHttpRequest> iterator() {
+		return entries.iterator();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public AnalyticsHttpRequest getLastRequest() {
+		return entries.isEmpty()? null : entries.get(entries.size() - 1);
+	}
+
+	public AnalyticsHttpRequest getLastException() {
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			if (entries.get(i).getWrappedException() != null) {
+				return entries.get(i);
+			}
+		}
+		return null;
+	}
+
+	public long getFirstSequence() {
+		return entries.isEmpty()? 0 : entries.get(0).getSequence();
+	}
+
+	public long getAppendCount() {
+		return appendCount;
+	}
+
+	public long getRetainedBytes() {
+		long bytes = 0;
+		for (AnalyticsHttpRequest request : entries) {
+			bytes += request.getRetainedSize();
+		}
+		return bytes;
+	}
+
+	public int trimTo(long maxBytes) {
+		return 0;
+	}
+
+	public boolean offer(AnalyticsHttpRequest request) {
+		throw new UnsupportedOperationException();
+	}
+
+	public AnalyticsHttpRequest peek() {
+		return entries.isEmpty()? null : entries.get(0);
+	}
+
+	public AnalyticsHttpRequest poll() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+}
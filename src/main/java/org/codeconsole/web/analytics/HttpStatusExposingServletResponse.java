@@ -17,13 +17,39 @@
 package org.codeconsole.web.analytics;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
+/**
+ * Exposes the status of the wrapped response and records, with
+ * {@link System#nanoTime()}, when the first byte was written or the
+ * response committed and when the response was completed.  Bytes written
+ * through the output stream are counted as they pass through; characters
+ * written through the writer are converted to their encoded size without
+ * being encoded or buffered.
+ * <p>
+ * Counting uses plain fields to stay cheap on every write.  For async
+ * requests the figures are read on the thread completing the request:
+ * {@link #markComplete()} publishes them through a single volatile write,
+ * and <code>AsyncContext.complete()</code> orders the last write before the
+ * completion.  Read {@link #getCompletionNanos()} before the other figures.
+ * Output the application writes to the response of an
+ * <code>AsyncContext</code> started with <code>startAsync()</code> bypasses
+ * this wrapper; see {@link #measureUnwrapped()}.
+ */
 public class HttpStatusExposingServletResponse extends HttpServletResponseWrapper {
 
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
     private int status = HttpServletResponse.SC_OK;
+    private long firstByteNanos;
+    private volatile long completionNanos;
+    private long bytesWritten;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
     
     public HttpStatusExposingServletResponse(HttpServletResponse response) {
         super(response);
@@ -32,15 +58,22 @@ public class HttpStatusExposingServletResponse extends HttpServletResponseWrappe
     @Override 
     public void sendError(int sc) throws IOException { 
         status = sc; 
+        markFirstByte();
         super.sendError(sc); 
     } 
  
     @Override 
     public void sendError(int sc, String msg) throws IOException { 
         status = sc; 
+        markFirstByte();
         super.sendError(sc, msg); 
     } 
  
+    @Override 
+    public void sendRedirect(String location) throws IOException {
+        markFirstByte();
+        super.sendRedirect(location);
+    } 
  
     @Override 
     public void setStatus(int sc) { 
@@ -48,7 +81,188 @@ public class HttpStatusExposingServletResponse extends HttpServletResponseWrappe
         super.setStatus(sc); 
     } 
  
+    @Override 
+    public void flushBuffer() throws IOException {
+        markFirstByte();
+        super.flushBuffer();
+    } 
+ 
+    @Override 
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new CountingOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    } 
+ 
+    @Override 
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new CountingWriter(super.getWriter(), EncodedSize.mode(getCharacterEncoding()));
+        }
+        return writer;
+    } 
+ 
     public int getStatus() { 
         return status; 
     } 
+ 
+    private void markFirstByte() {
+        if (firstByteNanos == 0) {
+            firstByteNanos = System.nanoTime();
+        }
+    } 
+ 
+    /**
+     * @return the number of bytes written to the response body, or -1 if not
+     * known.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Takes the size of an async response from the wrapped response if its
+     * output did not pass through this wrapper: the Content-Length header,
+     * or -1 if the response was committed without one.  When the first byte
+     * was sent cannot be known then, {@link #getFirstByteNanos()} stays 0.
+     */
+    public void measureUnwrapped() {
+        if (outputStream != null || writer != null || firstByteNanos != 0) {
+            return;
+        }
+        HttpServletResponse response = (HttpServletResponse) getResponse();
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                bytesWritten = Long.parseLong(contentLength.trim());
+                return;
+            } catch (NumberFormatException e) { }
+        }
+        if (response.isCommitted()) {
+            bytesWritten = -1;
+        }
+    }
+
+    /**
+     * Marks the response complete unless its output was already closed.
+     */
+    public void markComplete() {
+        if (completionNanos == 0) {
+            completionNanos = System.nanoTime();
+        }
+    } 
+ 
+    /**
+     * @return the {@link System#nanoTime()} of the first write, flush or
+     * error, or 0 if nothing was sent.
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    } 
+ 
+    /**
+     * @return the {@link System#nanoTime()} at which the output was closed
+     * or the response marked complete, or 0 if neither happened yet.
+     */
+    public long getCompletionNanos() {
+        return completionNanos;
+    } 
+ 
+    private final class CountingOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+
+        CountingOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            markFirstByte();
+            out.write(b);
+            bytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                markFirstByte();
+            }
+            out.write(b, off, len);
+            bytesWritten += len;
+        }
+ 
+        @Override
+        public void flush() throws IOException {
+            markFirstByte();
+            out.flush();
+        }
+ 
+        @Override
+        public void close() throws IOException {
+            markComplete();
+            out.close();
+        }
+    } 
+ 
+    private final class CountingWriter extends PrintWriter {
+        private final PrintWriter delegate;
+        private final int encoding;
+
+        CountingWriter(PrintWriter out, int encoding) {
+            super(out);
+            this.delegate = out;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void write(int c) {
+            markFirstByte();
+            super.write(c);
+            bytesWritten += EncodedSize.of(c, encoding);
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+            if (len > 0) {
+                markFirstByte();
+            }
+            super.write(buf, off, len);
+            bytesWritten += EncodedSize.of(buf, off, len, encoding);
+        }
+
+        @Override
+        public void write(String s, int off, int len) {
+            if (len > 0) {
+                markFirstByte();
+            }
+            super.write(s, off, len);
+            bytesWritten += EncodedSize.of(s, off, len, encoding);
+        }
+
+        @Override
+        public void println() {
+            // PrintWriter writes the line separator straight to the delegate
+            markFirstByte();
+            super.println();
+            bytesWritten += EncodedSize.of(LINE_SEPARATOR, 0, LINE_SEPARATOR.length(), encoding);
+        }
+ 
+        @Override
+        public void flush() {
+            markFirstByte();
+            super.flush();
+        }
+ 
+        @Override
+        public void close() {
+            markComplete();
+            super.close();
+        }
+ 
+        @Override
+        public boolean checkError() {
+            return super.checkError() || delegate.checkError();
+        }
+    } 
 }
\ No newline at end of file
@@ -0,0 +1,301 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.codeconsole.web.analytics.metrics.MetricsExporter;
+import org.codeconsole.web.analytics.metrics.MetricsRegistry;
+
+/**
+ * Scans the segments written by {@link EventJournal}.  Segments are mapped
+ * read-only and records are filtered on their time and status before
+ * anything is decoded; only records that pass those filters are decoded to
+ * match the URL pattern and handed to the {@link Visitor}.
+ * <p>
+ * Also a command line tool:
+ * <pre>
+ * java -cp analytics.jar org.codeconsole.web.analytics.JournalReader
+ *     [-from TIME] [-to TIME] [-url REGEX] [-status 500|5xx]
+ *     [-format text|json|prometheus|count] FILE_OR_DIRECTORY...
+ * </pre>
+ * where TIME is <code>yyyy-MM-dd'T'HH:mm:ss</code> or milliseconds since the
+ * epoch.  The <code>json</code> and <code>prometheus</code> formats print
+ * per endpoint aggregates, <code>text</code> prints the matching requests.
+ */
+public class JournalReader {
+
+	public interface Visitor {
+		/**
+		 * @param sessionKey the keyed hash the journal stores instead of the
+		 * session id, equal for requests of the same session.
+		 */
+		void visit(String sessionKey, AnalyticsHttpRequest request);
+	}
+
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+	private int minStatus = Integer.MIN_VALUE;
+	private int maxStatus = Integer.MAX_VALUE;
+	private boolean failedOnly;
+	private Pattern urlPattern;
+
+	private long scanned;
+	private long matched;
+	private long corrupt;
+
+	/**
+	 * Only visit requests made at or after <code>from</code> and before
+	 * <code>to</code>, in milliseconds since the epoch.
+	 */
+	public void setTimeRange(long from, long to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	public void setStatusRange(int minStatus, int maxStatus) {
+		this.minStatus = minStatus;
+		this.maxStatus = maxStatus;
+	}
+
+	public void setFailedOnly(boolean failedOnly) {
+		this.failedOnly = failedOnly;
+	}
+
+	/**
+	 * Only visit requests whose URL or route template contains a match of
+	 * <code>urlPattern</code>.
+	 */
+	public void setUrlPattern(Pattern urlPattern) {
+		this.urlPattern = urlPattern;
+	}
+
+	/**
+	 * Scans <code>paths</code> in order; directories are expanded to their
+	 * segments, oldest first.
+	 */
+	public void scan(List<File> paths, Visitor visitor) throws IOException {
+		for (File path : paths) {
+			if (path.isDirectory()) {
+				for (File segment : EventJournal.listSegments(path)) {
+					scanSegment(segment, visitor);
+				}
+			} else {
+				scanSegment(path, visitor);
+			}
+		}
+	}
+
+	public void scanSegment(File file, Visitor visitor) throws IOException {
+		MappedByteBuffer segment;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = Math.min(raf.length(), Integer.MAX_VALUE);
+			if (size < EventJournal.HEADER_SIZE) {
+				return;
+			}
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			raf.close();
+		}
+		if (segment.getInt() != EventJournal.MAGIC) {
+			throw new IOException(file + " is not an analytics journal segment");
+		}
+		int version = segment.get() & 0xff;
+		CompactEncoding.checkVersion(version);
+		segment.position(EventJournal.HEADER_SIZE);
+		ByteBufferInputStream input = new ByteBufferInputStream(segment);
+		DataInputStream data = new DataInputStream(input);
+		while (segment.remaining() >= EventJournal.RECORD_HEADER_SIZE) {
+			int length = segment.getInt();
+			if (length <= 0) {
+				break; // end of the written data
+			}
+			if (length > segment.remaining()) {
+				corrupt++;
+				break;
+			}
+			int end = segment.position() + length;
+			scanned++;
+			long requestTime = segment.getLong();
+			int status = segment.getInt();
+			boolean failed = (segment.get() & EventJournal.FLAG_FAILED) != 0;
+			if (requestTime >= from && requestTime < to && status >= minStatus && status <= maxStatus &&
+					(failed || !failedOnly)) {
+				// decoding past the record ends with an EOFException
+				segment.limit(end);
+				try {
+					CompactEncoding.Reader reader = new CompactEncoding.Reader(data, version);
+					String sessionKey = CompactEncoding.readString(data);
+					AnalyticsHttpRequest request = AnalyticsHttpRequest.readCompact(reader, requestTime);
+					if (urlPattern == null || urlPattern.matcher(request.getUrl()).find() ||
+							(request.getUrlTemplate() != null && urlPattern.matcher(request.getUrlTemplate()).find())) {
+						matched++;
+						visitor.visit(sessionKey, request);
+					}
+				} catch (IOException e) {
+					corrupt++;
+				} catch (RuntimeException e) {
+					corrupt++;
+				} finally {
+					segment.limit(segment.capacity());
+				}
+			}
+			segment.position(end);
+		}
+	}
+
+	public long getScannedCount() {
+		return scanned;
+	}
+
+	public long getMatchedCount() {
+		return matched;
+	}
+
+	public long getCorruptCount() {
+		return corrupt;
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int read() {
+			return buffer.hasRemaining()? buffer.get() & 0xff : -1;
+		}
+
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		JournalReader reader = new JournalReader();
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		String format = "text";
+		List<File> paths = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("-from")) {
+					from = parseTime(args[++i]);
+				} else if (arg.equals("-to")) {
+					to = parseTime(args[++i]);
+				} else if (arg.equals("-url")) {
+					reader.setUrlPattern(Pattern.compile(args[++i]));
+				} else if (arg.equals("-status")) {
+					String status = args[++i].toLowerCase();
+					if (status.endsWith("xx")) {
+						int statusClass = Integer.parseInt(status.substring(0, status.length() - 2));
+						reader.setStatusRange(statusClass * 100, statusClass * 100 + 99);
+					} else {
+						reader.setStatusRange(Integer.parseInt(status), Integer.parseInt(status));
+					}
+				} else if (arg.equals("-failed")) {
+					reader.setFailedOnly(true);
+				} else if (arg.equals("-format")) {
+					format = args[++i].toLowerCase();
+				} else if (arg.startsWith("-")) {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				} else {
+					paths.add(new File(arg));
+				}
+			}
+			if (paths.isEmpty()) {
+				throw new IllegalArgumentException("No journal given");
+			}
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: JournalReader [-from TIME] [-to TIME] [-url REGEX] [-status 500|5xx] [-failed]");
+			System.err.println("       [-format text|json|prometheus|count] FILE_OR_DIRECTORY...");
+			System.exit(2);
+			return;
+		}
+		reader.setTimeRange(from, to);
+
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+		if (format.equals("text")) {
+			final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+			reader.scan(paths, new Visitor() {
+				public void visit(String sessionKey, AnalyticsHttpRequest request) {
+					out.print(dateFormat.format(request.getRequestTime()));
+					out.print(' ');
+					out.print(sessionKey);
+					out.print(' ');
+					out.println(request);
+				}
+			});
+		} else if (format.equals("count")) {
+			reader.scan(paths, new Visitor() {
+				public void visit(String sessionKey, AnalyticsHttpRequest request) { }
+			});
+		} else {
+			MetricsExporter.Format exportFormat = MetricsExporter.Format.valueOf(format.toUpperCase());
+			final MetricsRegistry metrics = new MetricsRegistry(MetricsRegistry.DEFAULT_MAX_ENDPOINTS);
+			reader.scan(paths, new Visitor() {
+				public void visit(String sessionKey, AnalyticsHttpRequest request) {
+					long micros = request.getProcessingNanos() >= 0? request.getProcessingNanos() / 1000 : request.getDuration() * 1000;
+					String endpoint = request.getUrlTemplate() != null? request.getUrlTemplate() : request.getUrl();
+					metrics.record(endpoint, request.getMethod(), request.getStatus(), micros,
+							request.getRequestBytes(), request.getResponseBytes());
+				}
+			});
+			new MetricsExporter().export(metrics, out, exportFormat);
+		}
+		out.flush();
+		// on stderr so that the aggregates stay parseable
+		(format.equals("count")? System.out : System.err).println("scanned=" + reader.getScannedCount() +
+				" matched=" + reader.getMatchedCount() + (reader.getCorruptCount() > 0? " corrupt=" + reader.getCorruptCount() : ""));
+	}
+
+	private static long parseTime(String time) {
+		try {
+			return Long.parseLong(time);
+		} catch (NumberFormatException e) {
+			try {
+				return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").parse(time).getTime();
+			} catch (ParseException invalid) {
+				throw new IllegalArgumentException("Invalid time " + time);
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accounts for the heap retained by session histories, using the estimates
+ * of {@link AnalyticsHttpRequest#getRetainedSize()}.  A session whose
+ * history grows past <code>sessionLimit</code> bytes evicts its oldest
+ * entries.  When all sessions together grow past <code>globalLimit</code>,
+ * the largest histories are trimmed, oldest entries first, until usage is
+ * back under {@value #LOW_WATER_MARK} of the limit.  A limit of 0 only
+ * tracks usage.
+ * <p>
+ * Sessions are registered by the filter on first access and only weakly
+ * referenced; the usage of sessions that were garbage collected without
+ * being released is reclaimed on the next registration.
+ */
+public class MemoryBudget {
+
+	public static final double LOW_WATER_MARK = 0.9;
+
+	private final long sessionLimit;
+	private final long globalLimit;
+
+	private final AtomicLong used = new AtomicLong();
+	private final ConcurrentMap<Account, Boolean> accounts = new ConcurrentHashMap<Account, Boolean>();
+	private final ReferenceQueue<AnalyticsSession> collected = new ReferenceQueue<AnalyticsSession>();
+	private final ReentrantLock enforcing = new ReentrantLock();
+
+	private final AtomicLong sessionEvictions = new AtomicLong();
+	private final AtomicLong globalEvictions = new AtomicLong();
+
+	public MemoryBudget(long sessionLimit, long globalLimit) {
+		this.sessionLimit = sessionLimit;
+		this.globalLimit = globalLimit;
+	}
+
+	Account register(AnalyticsSession session) {
+		expunge();
+		Account account = new Account(this, session, collected);
+		accounts.put(account, Boolean.TRUE);
+		return account;
+	}
+
+	private void expunge() {
+		Account account;
+		while ((account = (Account) collected.poll()) != null) {
+			account.release();
+		}
+	}
+
+	/**
+	 * Trims the largest histories down to a common level that frees enough
+	 * to get usage below the low water mark.  Only one thread enforces at a
+	 * time; the others carry on.
+	 */
+	private void enforce() {
+		if (!enforcing.tryLock()) {
+			return;
+		}
+		try {
+			expunge();
+			long target = (long) (globalLimit * LOW_WATER_MARK);
+			// entries are evicted whole, so a pass may free a little less than planned
+			for (int pass = 0; pass < 3 && used.get() > target; pass++) {
+				List<Account> sorted = new ArrayList<Account>(accounts.keySet());
+				// sizes keep changing, sort on a copy
+				final Map<Account, Long> snapshot = new HashMap<Account, Long>(sorted.size() * 2);
+				for (Account account : sorted) {
+					snapshot.put(account, Long.valueOf(account.bytes));
+				}
+				Collections.sort(sorted, new Comparator<Account>() {
+					public int compare(Account a, Account b) {
+						return snapshot.get(b).compareTo(snapshot.get(a));
+					}
+				});
+				long[] sizes = new long[sorted.size()];
+				for (int i = 0; i < sizes.length; i++) {
+					sizes[i] = snapshot.get(sorted.get(i)).longValue();
+				}
+				long excess = used.get() - target;
+				long level = 0;
+				long above = 0;
+				int trimmedCount = sizes.length;
+				for (int i = 0; i < sizes.length; i++) {
+					above += sizes[i];
+					long next = i + 1 < sizes.length? sizes[i + 1] : 0;
+					if (above - (i + 1) * next >= excess) {
+						level = Math.max(0, (above - excess) / (i + 1));
+						trimmedCount = i + 1;
+						break;
+					}
+				}
+				long evicted = 0;
+				for (int i = 0; i < trimmedCount; i++) {
+					AnalyticsSession session = sorted.get(i).get();
+					if (session != null) {
+						evicted += session.trimHistory(level);
+					}
+				}
+				globalEvictions.addAndGet(evicted);
+				if (evicted == 0) {
+					break; // only entries still being written are left
+				}
+			}
+		} finally {
+			enforcing.unlock();
+		}
+	}
+
+	public long getSessionLimit() {
+		return sessionLimit;
+	}
+
+	public long getGlobalLimit() {
+		return globalLimit;
+	}
+
+	/**
+	 * @return the estimated heap retained by all registered histories.
+	 */
+	public long getUsedBytes() {
+		return used.get();
+	}
+
+	public int getSessionCount() {
+		return accounts.size();
+	}
+
+	/**
+	 * @return the number of entries evicted because a session exceeded its
+	 * own limit.
+	 */
+	public long getSessionEvictions() {
+		return sessionEvictions.get();
+	}
+
+	/**
+	 * @return the number of entries evicted because the global limit was
+	 * exceeded.
+	 */
+	public long getGlobalEvictions() {
+		return globalEvictions.get();
+	}
+
+	/**
+	 * Usage of one session's history.
+	 */
+	static final class Account extends WeakReference<AnalyticsSession> {
+		private final MemoryBudget budget;
+		private volatile long bytes;
+
+		Account(MemoryBudget budget, AnalyticsSession session, ReferenceQueue<AnalyticsSession> queue) {
+			super(session, queue);
+			this.budget = budget;
+		}
+
+		/**
+		 * Called after the history changed, enforces the limits.
+		 */
+		void update(History history) {
+			if (budget.sessionLimit > 0 && history.getRetainedBytes() > budget.sessionLimit) {
+				budget.sessionEvictions.addAndGet(history.trimTo(budget.sessionLimit));
+			}
+			set(history.getRetainedBytes());
+			if (budget.globalLimit > 0 && budget.used.get() > budget.globalLimit) {
+				budget.enforce();
+			}
+		}
+
+		synchronized void set(long bytes) {
+			if (budget.accounts.containsKey(this)) {
+				budget.used.addAndGet(bytes - this.bytes);
+				this.bytes = bytes;
+			}
+		}
+
+		synchronized void release() {
+			if (budget.accounts.remove(this) != null) {
+				budget.used.addAndGet(-bytes);
+				bytes = 0;
+			}
+		}
+
+		long getBytes() {
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * History of one session kept in an {@link OffHeapHistoryStore}.  Requests
+ * are encoded when appended and decoded again on every read, so the
+ * requests returned are copies; changing them does not change the history.
+ */
+class OffHeapHistory extends AbstractQueue<AnalyticsHttpRequest> implements History {
+
+	private final OffHeapHistoryStore store;
+	private final String key;
+	private final int capacity;
+
+	OffHeapHistory(OffHeapHistoryStore store, String key, int capacity) {
+		this.store = store;
+		this.key = key;
+		this.capacity = capacity;
+		store.open(key, capacity);
+	}
+
+	String getKey() {
+		return key;
+	}
+
+	OffHeapHistoryStore getStore() {
+		return store;
+	}
+
+	public boolean offer(AnalyticsHttpRequest request) {
+		long sequence = store.append(key, capacity, encode(request), request.getWrappedException() != null);
+		request.setSequence(sequence);
+		return sequence >= 0;
+	}
+
+	static byte[] encode(AnalyticsHttpRequest request) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream out = new DataOutputStream(bytes);
+			request.writeCompact(new CompactEncoding.Writer(out), 0);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static AnalyticsHttpRequest decode(byte[] data, long sequence) {
+		try {
+			AnalyticsHttpRequest request = AnalyticsHttpRequest.readCompact(
+					new CompactEncoding.Reader(new DataInputStream(new ByteArrayInputStream(data))), 0);
+			request.setSequence(sequence);
+			return request;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public List<AnalyticsHttpRequest> snapshot() {
+		List<Long> sequences = new ArrayList<Long>();
+		List<byte[]> entries = store.snapshot(key, sequences);
+		List<AnalyticsHttpRequest> snapshot = new ArrayList<AnalyticsHttpRequest>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			snapshot.add(decode(entries.get(i), sequences.get(i).longValue()));
+		}
+		return Collections.unmodifiableList(snapshot);
+	}
+
+	private AnalyticsHttpRequest latest(boolean failedOnly) {
+		long[] sequence = new long[1];
+		byte[] data = store.latest(key, failedOnly, sequence);
+		return data == null? null : decode(data, sequence[0]);
+	}
+
+	public AnalyticsHttpRequest getLastRequest() {
+		return latest(false);
+	}
+
+	public AnalyticsHttpRequest getLastException() {
+		return latest(true);
+	}
+
+	public long getFirstSequence() {
+		return store.getFirstSequence(key);
+	}
+
+	public long getAppendCount() {
+		return store.getAppendCount(key);
+	}
+
+	public Iterator<AnalyticsHttpRequest> iterator() {
+		return snapshot().iterator();
+	}
+
+	public int size() {
+		return store.size(key);
+	}
+
+	public AnalyticsHttpRequest peek() {
+		List<AnalyticsHttpRequest> snapshot = snapshot();
+		return snapshot.isEmpty()? null : snapshot.get(0);
+	}
+
+	public AnalyticsHttpRequest poll() {
+		long[] sequence = new long[1];
+		byte[] data = store.poll(key, sequence);
+		return data == null? null : decode(data, sequence[0]);
+	}
+
+	public void clear() {
+		store.clear(key);
+	}
+
+	/**
+	 * Entries are not on the heap, the store has its own budget.
+	 */
+	public long getRetainedBytes() {
+		return 0;
+	}
+
+	public int trimTo(long maxBytes) {
+		return 0;
+	}
+
+	void release() {
+		store.release(key);
+	}
+}
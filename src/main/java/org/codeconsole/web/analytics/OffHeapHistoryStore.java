@@ -0,0 +1,379 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the request histories of all sessions outside of the heap, so the
+ * {@link AnalyticsSession} stored in the <code>HttpSession</code> only
+ * holds a key.  Entries are stored in their compact encoding in fixed size
+ * blocks carved out of direct {@link ByteBuffer} slabs, which are allocated
+ * as needed up to the memory budget.  Once the budget is used up the
+ * histories of the least recently used sessions are evicted.
+ * <p>
+ * All operations synchronize on the store; encoding and decoding entries
+ * happens outside of the lock.  Histories are released when their session
+ * is destroyed, see {@link AnalyticsSessionListener}.
+ */
+public class OffHeapHistoryStore {
+
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+
+	private static final int MAX_SLAB_SIZE = 1 << 20;
+
+	private final int blockSize;
+	private final int blocksPerSlab;
+	private final ByteBuffer[] slabs;
+	private int slabCount;
+	private final int[] freeBlocks;
+	private int freeCount;
+
+	// access ordered, eldest first
+	private final LinkedHashMap<String, Entries> sessions = new LinkedHashMap<String, Entries>(16, 0.75f, true);
+
+	private final String keyPrefix;
+	private final AtomicLong keys = new AtomicLong();
+	private long evictedSessions;
+	private long evictedEntries;
+	private long droppedEntries;
+
+	public OffHeapHistoryStore() {
+		this(DEFAULT_BUDGET, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param budget the most bytes of direct memory to use.
+	 * @param blockSize the unit in which memory is given to entries.
+	 */
+	public OffHeapHistoryStore(long budget, int blockSize) {
+		if (blockSize < 16 || budget < blockSize) {
+			throw new IllegalArgumentException("Invalid budget " + budget + " or block size " + blockSize);
+		}
+		this.blockSize = blockSize;
+		int slabSize = (int) Math.min(MAX_SLAB_SIZE, budget);
+		this.blocksPerSlab = slabSize / blockSize;
+		this.slabs = new ByteBuffer[(int) Math.min(Integer.MAX_VALUE / blocksPerSlab, budget / ((long) blocksPerSlab * blockSize))];
+		this.freeBlocks = new int[slabs.length * blocksPerSlab];
+		// keys of a previous store, e.g. in sessions persisted across a restart, never match
+		this.keyPrefix = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36) + '-';
+	}
+
+	String newKey() {
+		return keyPrefix + Long.toString(keys.incrementAndGet(), 36);
+	}
+
+	synchronized void open(String key, int capacity) {
+		entries(key, capacity);
+	}
+
+	private Entries entries(String key, int capacity) {
+		Entries entries = sessions.get(key);
+		if (entries == null) {
+			entries = new Entries(Math.max(1, capacity));
+			sessions.put(key, entries);
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the sequence number the entry was stored under, or -1 if it
+	 * does not fit into the budget at all.
+	 */
+	synchronized long append(String key, int capacity, byte[] data, boolean failed) {
+		Entries entries = entries(key, capacity);
+		int slot = (int) (entries.next % entries.capacity);
+		int needed = Math.max(1, (data.length + blockSize - 1) / blockSize);
+		if (needed > freeBlocks.length) {
+			droppedEntries++;
+			return -1;
+		}
+		// the entry being overwritten is only freed once the new one is known to fit
+		while (freeCount + blockCount(entries, slot) < needed) {
+			if (slabCount < slabs.length) {
+				addSlab();
+			} else if (!evict(entries)) {
+				droppedEntries++;
+				return -1;
+			}
+		}
+		free(entries, slot);
+		int[] blocks = new int[needed];
+		for (int i = 0; i < needed; i++) {
+			int block = freeBlocks[--freeCount];
+			blocks[i] = block;
+			ByteBuffer slab = slabs[block / blocksPerSlab];
+			slab.position((block % blocksPerSlab) * blockSize);
+			slab.put(data, i * blockSize, Math.min(blockSize, data.length - i * blockSize));
+		}
+		long sequence = entries.next++;
+		entries.blocks[slot] = blocks;
+		entries.lengths[slot] = data.length;
+		entries.sequences[slot] = sequence;
+		entries.failed[slot] = failed;
+		return sequence;
+	}
+
+	private static int blockCount(Entries entries, int slot) {
+		int[] blocks = entries.blocks[slot];
+		return blocks == null? 0 : blocks.length;
+	}
+
+	private void addSlab() {
+		slabs[slabCount] = ByteBuffer.allocateDirect(blocksPerSlab * blockSize);
+		for (int i = blocksPerSlab - 1; i >= 0; i--) {
+			freeBlocks[freeCount++] = slabCount * blocksPerSlab + i;
+		}
+		slabCount++;
+	}
+
+	/**
+	 * Frees the history of the least recently used session other than
+	 * <code>current</code>, or the oldest entry of <code>current</code> if
+	 * it is the only one left.
+	 */
+	private boolean evict(Entries current) {
+		for (Iterator<Entries> it = sessions.values().iterator(); it.hasNext();) {
+			Entries eldest = it.next();
+			if (eldest != current) {
+				it.remove();
+				freeAll(eldest);
+				evictedSessions++;
+				return true;
+			}
+		}
+		for (long sequence = current.next - current.capacity; sequence < current.next; sequence++) {
+			int slot = (int) (sequence % current.capacity);
+			if (sequence >= 0 && current.blocks[slot] != null) {
+				free(current, slot);
+				evictedEntries++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void free(Entries entries, int slot) {
+		int[] blocks = entries.blocks[slot];
+		if (blocks != null) {
+			for (int block : blocks) {
+				freeBlocks[freeCount++] = block;
+			}
+			entries.blocks[slot] = null;
+		}
+	}
+
+	private void freeAll(Entries entries) {
+		for (int slot = 0; slot < entries.capacity; slot++) {
+			free(entries, slot);
+		}
+	}
+
+	private byte[] read(Entries entries, int slot) {
+		int[] blocks = entries.blocks[slot];
+		byte[] data = new byte[entries.lengths[slot]];
+		for (int i = 0; i < blocks.length; i++) {
+			ByteBuffer slab = slabs[blocks[i] / blocksPerSlab];
+			slab.position((blocks[i] % blocksPerSlab) * blockSize);
+			slab.get(data, i * blockSize, Math.min(blockSize, data.length - i * blockSize));
+		}
+		return data;
+	}
+
+	/**
+	 * @return the encoded entries of <code>key</code>, oldest first, with
+	 * their sequence numbers in <code>sequences</code>.
+	 */
+	synchronized List<byte[]> snapshot(String key, List<Long> sequences) {
+		List<byte[]> snapshot = new ArrayList<byte[]>();
+		Entries entries = sessions.get(key);
+		if (entries != null) {
+			for (long sequence = Math.max(0, entries.next - entries.capacity); sequence < entries.next; sequence++) {
+				int slot = (int) (sequence % entries.capacity);
+				if (entries.blocks[slot] != null && entries.sequences[slot] == sequence) {
+					snapshot.add(read(entries, slot));
+					sequences.add(Long.valueOf(sequence));
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @param failedOnly whether to look for the latest entry with an exception.
+	 * @return the latest matching entry followed by its sequence number in
+	 * <code>sequence[0]</code>, or <code>null</code>.
+	 */
+	synchronized byte[] latest(String key, boolean failedOnly, long[] sequence) {
+		Entries entries = sessions.get(key);
+		if (entries != null) {
+			for (long seq = entries.next - 1; seq >= 0 && seq >= entries.next - entries.capacity; seq--) {
+				int slot = (int) (seq % entries.capacity);
+				if (entries.blocks[slot] == null || entries.sequences[slot] != seq) {
+					break;
+				}
+				if (!failedOnly || entries.failed[slot]) {
+					sequence[0] = seq;
+					return read(entries, slot);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the oldest entry of <code>key</code>.
+	 * @return the entry followed by its sequence number in
+	 * <code>sequence[0]</code>, or <code>null</code> if there is none.
+	 */
+	synchronized byte[] poll(String key, long[] sequence) {
+		Entries entries = sessions.get(key);
+		if (entries != null) {
+			for (long seq = Math.max(0, entries.next - entries.capacity); seq < entries.next; seq++) {
+				int slot = (int) (seq % entries.capacity);
+				if (entries.blocks[slot] != null && entries.sequences[slot] == seq) {
+					byte[] data = read(entries, slot);
+					free(entries, slot);
+					sequence[0] = seq;
+					return data;
+				}
+			}
+		}
+		return null;
+	}
+
+	synchronized int size(String key) {
+		Entries entries = sessions.get(key);
+		int size = 0;
+		if (entries != null) {
+			for (int slot = 0; slot < entries.capacity; slot++) {
+				if (entries.blocks[slot] != null) {
+					size++;
+				}
+			}
+		}
+		return size;
+	}
+
+	synchronized long getAppendCount(String key) {
+		Entries entries = sessions.get(key);
+		return entries == null? 0 : entries.next;
+	}
+
+	synchronized long getFirstSequence(String key) {
+		Entries entries = sessions.get(key);
+		if (entries == null) {
+			return 0;
+		}
+		for (long sequence = Math.max(0, entries.next - entries.capacity); sequence < entries.next; sequence++) {
+			if (entries.blocks[(int) (sequence % entries.capacity)] != null) {
+				return sequence;
+			}
+		}
+		return entries.next;
+	}
+
+	synchronized void clear(String key) {
+		Entries entries = sessions.get(key);
+		if (entries != null) {
+			freeAll(entries);
+		}
+	}
+
+	/**
+	 * Frees the history of <code>key</code>, e.g. when its session was destroyed.
+	 */
+	public synchronized void release(String key) {
+		Entries entries = sessions.remove(key);
+		if (entries != null) {
+			freeAll(entries);
+		}
+	}
+
+	/**
+	 * Drops all histories and the references to the slabs.
+	 */
+	public synchronized void close() {
+		sessions.clear();
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = null;
+		}
+		slabCount = 0;
+		freeCount = 0;
+	}
+
+	public synchronized int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return the direct memory currently allocated in bytes.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) slabCount * blocksPerSlab * blockSize;
+	}
+
+	/**
+	 * @return the bytes taken by stored entries, rounded up to whole blocks.
+	 */
+	public synchronized long getUsedBytes() {
+		return ((long) slabCount * blocksPerSlab - freeCount) * blockSize;
+	}
+
+	public long getBudget() {
+		return (long) slabs.length * blocksPerSlab * blockSize;
+	}
+
+	public synchronized long getEvictedSessions() {
+		return evictedSessions;
+	}
+
+	public synchronized long getEvictedEntries() {
+		return evictedEntries;
+	}
+
+	public synchronized long getDroppedEntries() {
+		return droppedEntries;
+	}
+
+	/**
+	 * Ring of encoded entries of one session.
+	 */
+	private static final class Entries {
+		final int capacity;
+		final int[][] blocks;
+		final int[] lengths;
+		final long[] sequences;
+		final boolean[] failed;
+		long next;
+
+		Entries(int capacity) {
+			this.capacity = capacity;
+			this.blocks = new int[capacity][];
+			this.lengths = new int[capacity];
+			this.sequences = new long[capacity];
+			this.failed = new boolean[capacity];
+		}
+	}
+}
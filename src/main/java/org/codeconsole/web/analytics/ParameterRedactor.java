@@ -0,0 +1,248 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Applies the <code>exclude-params</code> rules to request parameters.
+ * {@link #redact(Map, String, boolean)} returns a read-only view over the
+ * container's parameter map that leaves out parameters already present in
+ * the query string and masks the values of excluded parameters (or of all
+ * parameters if the URL is excluded).  Nothing is copied until the view is
+ * {@link View#materialize() materialized}, which only happens for requests
+ * that are kept in the history; masked values are never copied at all.
+ */
+public class ParameterRedactor {
+
+	public static final String FILTERED = "**FILTERED**";
+
+	private static final String[] FILTERED_VALUE = { FILTERED };
+
+	private final UrlExclusionMatcher excludedNames;
+
+	public ParameterRedactor(List<String> excludedNameRules) {
+		this.excludedNames = new UrlExclusionMatcher(excludedNameRules);
+	}
+
+	public ParameterRedactor() {
+		this(new ArrayList<String>());
+	}
+
+	/**
+	 * @param parameters the container's parameter map, which must remain
+	 * valid until the view is materialized.
+	 * @param filterAll whether to mask every value, used for excluded URLs.
+	 */
+	public View redact(Map<String, String[]> parameters, String queryString, boolean filterAll) {
+		return new View(this, parameters, queryString, filterAll);
+	}
+
+	boolean isExcluded(String name) {
+		return excludedNames.isExcluded(name);
+	}
+
+	/**
+	 * @return whether <code>queryString</code> contains <code>name</code>
+	 * as a parameter key.  Scans the string in place without allocating
+	 * unless a key needs URL decoding.
+	 */
+	static boolean isQueryStringKey(String queryString, String name) {
+		if (queryString == null) {
+			return false;
+		}
+		int length = queryString.length();
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			boolean encoded = false;
+			char c;
+			while (end < length && (c = queryString.charAt(end)) != '=' && c != '&') {
+				if (c == '%' || c == '+') {
+					encoded = true;
+				}
+				end++;
+			}
+			if (end > start) {
+				if (encoded) {
+					if (name.equals(decode(queryString.substring(start, end)))) {
+						return true;
+					}
+				} else if (end - start == name.length() && queryString.regionMatches(start, name, 0, name.length())) {
+					return true;
+				}
+			}
+			// skip the value
+			while (end < length && queryString.charAt(end) != '&') {
+				end++;
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	private static String decode(String key) {
+		try {
+			return URLDecoder.decode(key, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return key;
+		} catch (IllegalArgumentException e) {
+			return key;
+		}
+	}
+
+	/**
+	 * Read-only, lazily evaluated view of the redacted parameters.
+	 */
+	public static final class View extends AbstractMap<String, String[]> {
+		private final ParameterRedactor redactor;
+		private final Map<String, String[]> parameters;
+		private final String queryString;
+		private final boolean filterAll;
+
+		View(ParameterRedactor redactor, Map<String, String[]> parameters, String queryString, boolean filterAll) {
+			this.redactor = redactor;
+			this.parameters = parameters;
+			this.queryString = queryString;
+			this.filterAll = filterAll;
+		}
+
+		private boolean isKept(String name) {
+			return !isQueryStringKey(queryString, name);
+		}
+
+		private String[] value(String name, String[] value) {
+			return filterAll || redactor.isExcluded(name)? FILTERED_VALUE : value;
+		}
+
+		public String[] get(Object key) {
+			String[] value = parameters.get(key);
+			if (value == null || !isKept((String) key)) {
+				return null;
+			}
+			return value(((String) key), value);
+		}
+
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		public Set<Map.Entry<String, String[]>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String[]>>() {
+				public Iterator<Map.Entry<String, String[]>> iterator() {
+					return new EntryIterator(parameters.entrySet().iterator());
+				}
+
+				public int size() {
+					int size = 0;
+					for (Iterator<Map.Entry<String, String[]>> it = iterator(); it.hasNext(); it.next()) {
+						size++;
+					}
+					return size;
+				}
+			};
+		}
+
+		/**
+		 * @return a copy of the kept parameters that no longer refers to the
+		 * container's map.  Masked values share one constant array and the
+		 * names come from the {@link StringPool}.
+		 */
+		public Map<String, String[]> materialize() {
+			Map<String, String[]> copy = new HashMap<String, String[]>();
+			StringPool pool = StringPool.getShared();
+			for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+				String name = entry.getKey();
+				if (isKept(name)) {
+					String[] value = value(name, entry.getValue());
+					copy.put(pool.canonicalize(name), value == FILTERED_VALUE? FILTERED_VALUE : value.clone());
+				}
+			}
+			return copy;
+		}
+
+		private final class EntryIterator implements Iterator<Map.Entry<String, String[]>> {
+			private final Iterator<Map.Entry<String, String[]>> source;
+			private Map.Entry<String, String[]> next;
+
+			EntryIterator(Iterator<Map.Entry<String, String[]>> source) {
+				this.source = source;
+				advance();
+			}
+
+			private void advance() {
+				next = null;
+				while (source.hasNext()) {
+					Map.Entry<String, String[]> entry = source.next();
+					if (isKept(entry.getKey())) {
+						next = new ParameterRedactor.SimpleImmutableEntry(entry.getKey(), value(entry.getKey(), entry.getValue()));
+						return;
+					}
+				}
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public Map.Entry<String, String[]> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, String[]> entry = next;
+				advance();
+				return entry;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+	}
+
+	private static final class SimpleImmutableEntry implements Map.Entry<String, String[]> {
+		private final String key;
+		private final String[] value;
+
+		SimpleImmutableEntry(String key, String[] value) {
+			this.key = key;
+			this.value = value;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String[] getValue() {
+			return value;
+		}
+
+		public String[] setValue(String[] value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
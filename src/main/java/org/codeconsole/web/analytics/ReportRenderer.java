@@ -0,0 +1,392 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes {@link AnalyticsSession} reports straight to a {@link Writer} in a
+ * single pass over a history snapshot, as HTML, plain text or JSON.  Date
+ * and number formats are cached per thread.
+ */
+public class ReportRenderer {
+
+	public enum Format {
+		HTML("text/html"), TEXT("text/plain"), JSON("application/json");
+
+		private final String contentType;
+
+		private Format(String contentType) {
+			this.contentType = contentType;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+	}
+
+	private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("MM-dd-yyyy h:mm:ss a");
+		}
+	};
+
+	private static final ThreadLocal<DecimalFormat> MINUTES_FORMAT = new ThreadLocal<DecimalFormat>() {
+		protected DecimalFormat initialValue() {
+			return new DecimalFormat("#.##");
+		}
+	};
+
+	private static final ReportRenderer INSTANCE = new ReportRenderer();
+
+	public static ReportRenderer getInstance() {
+		return INSTANCE;
+	}
+
+	public static String formatDate(long time) {
+		return DATE_FORMAT.get().format(new Date(time));
+	}
+
+	/**
+	 * Renders the complete report.
+	 */
+	public void render(AnalyticsSession session, Writer out, Format format) throws IOException {
+		render(session, out, format, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Renders the report into <code>out</code> as UTF-8 and flushes it, for
+	 * gateways that write to a stream.
+	 */
+	public void render(AnalyticsSession session, OutputStream out, Format format) throws IOException {
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+		render(session, writer, format);
+		writer.flush();
+	}
+
+	/**
+	 * Renders the report with at most <code>limit</code> history entries,
+	 * starting at entry <code>offset</code> (oldest first).
+	 */
+	public void render(AnalyticsSession session, Writer out, Format format, int offset, int limit) throws IOException {
+		List<AnalyticsHttpRequest> history = session.getHistorySnapshot();
+		int from = Math.min(Math.max(0, offset), history.size());
+		int to = (int) Math.min((long) from + Math.max(0, limit), history.size());
+		List<AnalyticsHttpRequest> page = history.subList(from, to);
+		switch (format) {
+		case JSON:
+			renderJson(session, page, history.size(), from, out);
+			break;
+		case TEXT:
+			renderText(session, page, out);
+			break;
+		default:
+			renderHtml(session, page, history.size(), from, limit, out);
+		}
+	}
+
+	private String onlineMinutes(AnalyticsSession session) {
+		return MINUTES_FORMAT.get().format((System.currentTimeMillis() - session.getCreationTime()) / (60.0 * 1000.0));
+	}
+
+	private void renderText(AnalyticsSession session, List<AnalyticsHttpRequest> page, Writer out) throws IOException {
+		out.write("Analytics Report\n");
+		out.write("\nSession Start Time: ");
+		out.write(formatDate(session.getCreationTime()));
+		out.write("\nTotal Online Time: ");
+		out.write(onlineMinutes(session));
+		out.write(" minutes");
+		out.write("\nIP Address: " + session.getIp());
+		out.write("\nReferer: " + session.getReferer());
+		out.write("\nHistory");
+		for (AnalyticsHttpRequest request : page) {
+			out.write('\n');
+			writeRequest(request, out, false);
+			if (request.getWrappedException() != null) {
+				out.write('\n');
+				out.write(String.valueOf(request.getWrappedException().getDescription()));
+			}
+		}
+		AnalyticsHttpRequest last = session.getLastRequest();
+		if (last != null && last.getWrappedException() != null) {
+			out.write("\nLast Exception\n\n");
+			out.write(String.valueOf(last.getWrappedException().getStackTrace()));
+		}
+		if (last != null && last.getSourceRevision() != null) {
+			out.write("\n\nSource Revision\n");
+			out.write(last.getSourceRevision());
+		}
+		if (session.getUserDetails() != null) {
+			out.write("\n\nUser Information\n");
+			out.write(session.getUserDetails().toString());
+		}
+	}
+
+	private void renderHtml(AnalyticsSession session, List<AnalyticsHttpRequest> page, int total, int offset, int limit, Writer out) throws IOException {
+		out.write("<h1>Analytics Report</h1>");
+		out.write("<div>Session Start Time: ");
+		out.write(formatDate(session.getCreationTime()));
+		out.write("</div><div>Total Online Time: ");
+		out.write(onlineMinutes(session));
+		out.write(" minutes</div><div>IP Address: ");
+		writeHtml(session.getIp(), out);
+		out.write("</div><div>Referer: ");
+		writeHtml(session.getReferer(), out);
+		out.write("</div>");
+		out.write("<h3>History</h3>");
+		out.write("<ul>");
+		for (AnalyticsHttpRequest request : page) {
+			out.write("<li>");
+			writeRequest(request, out, true);
+			if (request.getWrappedException() != null) {
+				out.write(" <strong>");
+				writeHtml(request.getWrappedException().getDescription(), out);
+				out.write("</strong>");
+			}
+			out.write("</li>");
+		}
+		out.write("</ul>");
+		if (offset > 0 || offset + page.size() < total) {
+			out.write("<div>Entries " + (page.isEmpty()? offset : offset + 1) + " - " + (offset + page.size()) + " of " + total);
+			if (offset > 0) {
+				out.write(" &nbsp; <a href=\"?offset=" + Math.max(0, offset - limit) + "&amp;limit=" + limit + "\">Previous</a>");
+			}
+			if (offset + page.size() < total) {
+				out.write(" &nbsp; <a href=\"?offset=" + (offset + page.size()) + "&amp;limit=" + limit + "\">Next</a>");
+			}
+			out.write("</div>");
+		}
+
+		AnalyticsHttpRequest last = session.getLastException();
+		if (last != null) {
+			out.write("<h3>Last Exception</h3><pre>");
+			writeHtml(last.getWrappedException().getStackTrace(), out);
+			out.write("</pre>");
+		}
+		if (last != null && last.getSourceRevision() != null) {
+			out.write("<h3>Source Revision</h3><pre>");
+			writeHtml(last.getSourceRevision(), out);
+			out.write("</pre>");
+		}
+		if (session.getUserDetails() != null) {
+			out.write("<h3>User Information</h3><pre>");
+			writeHtml(session.getUserDetails().toString(), out);
+			out.write("</pre>");
+		}
+	}
+
+	/**
+	 * Writes the one line summary of a request, the URL as a link if
+	 * <code>html</code> is set.
+	 */
+	public void writeRequest(AnalyticsHttpRequest request, Writer out, boolean html) throws IOException {
+		out.write(formatDate(request.getRequestTimeMillis()));
+		out.write(" (");
+		writeEscaped(request.getMethod(), out, html);
+		out.write(") - ");
+		String url = request.getUrlWithQueryString();
+		if (html) {
+			out.write("<a href=\"");
+			writeHtml(url, out);
+			out.write("\">");
+			writeHtml(url, out);
+			out.write("</a>");
+		} else {
+			out.write(url);
+		}
+		out.write(' ');
+		for (Map.Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
+			out.write('{');
+			writeEscaped(entry.getKey(), out, html);
+			out.write(':');
+			String[] values = entry.getValue();
+			for (int i = 0; values != null && i < values.length; i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				writeEscaped(values[i], out, html);
+			}
+			out.write('}');
+		}
+		out.write(" (" + request.getStatus() + " - " + request.getDuration() + " ms");
+		if (request.getFirstByteNanos() >= 0) {
+			out.write(", first byte " + request.getFirstByteNanos() / 1000000 + " ms");
+		}
+		if (request.getResponseBytes() >= 0) {
+			out.write(", " + request.getResponseBytes() + " bytes");
+		}
+		out.write(')');
+	}
+
+	private void renderJson(AnalyticsSession session, List<AnalyticsHttpRequest> page, int total, int offset, Writer out) throws IOException {
+		out.write("{\"creationTime\":" + session.getCreationTime());
+		out.write(",\"ip\":");
+		writeJson(session.getIp(), out);
+		out.write(",\"referer\":");
+		writeJson(session.getReferer(), out);
+		out.write(",\"total\":" + total + ",\"offset\":" + offset + ",\"history\":[");
+		boolean first = true;
+		for (AnalyticsHttpRequest request : page) {
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			out.write("{\"time\":" + request.getRequestTimeMillis());
+			out.write(",\"method\":");
+			writeJson(request.getMethod(), out);
+			out.write(",\"url\":");
+			writeJson(request.getUrl(), out);
+			out.write(",\"template\":");
+			writeJson(request.getUrlTemplate(), out);
+			out.write(",\"queryString\":");
+			writeJson(request.getQueryString(), out);
+			out.write(",\"parameters\":{");
+			boolean firstParameter = true;
+			for (Map.Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
+				if (!firstParameter) {
+					out.write(',');
+				}
+				firstParameter = false;
+				writeJson(entry.getKey(), out);
+				out.write(":[");
+				String[] values = entry.getValue();
+				for (int i = 0; values != null && i < values.length; i++) {
+					if (i > 0) {
+						out.write(',');
+					}
+					writeJson(values[i], out);
+				}
+				out.write(']');
+			}
+			out.write("},\"status\":" + request.getStatus() + ",\"duration\":" + request.getDuration());
+			out.write(",\"processingNanos\":" + request.getProcessingNanos());
+			out.write(",\"firstByteNanos\":" + request.getFirstByteNanos());
+			out.write(",\"streamingNanos\":" + request.getStreamingNanos());
+			out.write(",\"filterOverheadNanos\":" + request.getFilterOverheadNanos());
+			out.write(",\"requestBytes\":" + request.getRequestBytes());
+			out.write(",\"responseBytes\":" + request.getResponseBytes());
+			out.write(",\"sampleWeight\":" + request.getSampleWeight());
+			out.write(",\"sourceRevision\":");
+			writeJson(request.getSourceRevision(), out);
+			if (request.getWrappedException() != null) {
+				out.write(",\"exception\":");
+				writeJsonException(request.getWrappedException(), false, out);
+			}
+			out.write('}');
+		}
+		out.write(']');
+		AnalyticsHttpRequest last = session.getLastException();
+		if (last != null) {
+			out.write(",\"lastException\":");
+			writeJsonException(last.getWrappedException(), true, out);
+		}
+		if (session.getUserDetails() != null) {
+			out.write(",\"userDetails\":");
+			writeJson(session.getUserDetails().toString(), out);
+		}
+		out.write('}');
+	}
+
+	private void writeJsonException(WrappedException exception, boolean stackTrace, Writer out) throws IOException {
+		out.write("{\"type\":");
+		writeJson(exception.getExceptionType(), out);
+		out.write(",\"description\":");
+		writeJson(exception.getDescription(), out);
+		out.write(",\"fileName\":");
+		writeJson(exception.getFileName(), out);
+		out.write(",\"methodName\":");
+		writeJson(exception.getMethodName(), out);
+		out.write(",\"lineNumber\":" + exception.getLineNumber());
+		out.write(",\"fingerprint\":\"" + Long.toHexString(exception.getFingerprint()) + "\"");
+		if (stackTrace) {
+			out.write(",\"stackTrace\":");
+			writeJson(exception.getStackTrace(), out);
+		}
+		out.write('}');
+	}
+
+	private static void writeEscaped(String value, Writer out, boolean html) throws IOException {
+		if (html) {
+			writeHtml(value, out);
+		} else {
+			out.write(String.valueOf(value));
+		}
+	}
+
+	public static void writeHtml(String value, Writer out) throws IOException {
+		if (value == null) {
+			out.write("null");
+			return;
+		}
+		int length = value.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			String replacement;
+			switch (value.charAt(i)) {
+			case '<': replacement = "&lt;"; break;
+			case '>': replacement = "&gt;"; break;
+			case '&': replacement = "&amp;"; break;
+			case '"': replacement = "&quot;"; break;
+			case '\'': replacement = "&#39;"; break;
+			default: continue;
+			}
+			out.write(value, start, i - start);
+			out.write(replacement);
+			start = i + 1;
+		}
+		out.write(value, start, length - start);
+	}
+
+	public static void writeJson(String value, Writer out) throws IOException {
+		if (value == null) {
+			out.write("null");
+			return;
+		}
+		out.write('"');
+		int length = value.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			String replacement;
+			switch (c) {
+			case '"': replacement = "\\\""; break;
+			case '\\': replacement = "\\\\"; break;
+			case '\n': replacement = "\\n"; break;
+			case '\r': replacement = "\\r"; break;
+			case '\t': replacement = "\\t"; break;
+			default:
+				if (c >= 0x20 && c != 0x2028 && c != 0x2029) {
+					continue;
+				}
+				replacement = String.format("\\u%04x", Integer.valueOf(c));
+			}
+			out.write(value, start, i - start);
+			out.write(replacement);
+			start = i + 1;
+		}
+		out.write(value, start, length - start);
+		out.write('"');
+	}
+}
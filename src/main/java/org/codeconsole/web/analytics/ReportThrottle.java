@@ -0,0 +1,358 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codeconsole.web.analytics.integration.ErrorSummaryGateway;
+
+/**
+ * Limits the number of full reports sent for the same error.  Errors are
+ * keyed on exception type and throwing location; the first
+ * <code>limit</code> occurrences of a key within each window are admitted,
+ * the rest are only counted and reported as {@link ErrorSummary summaries}
+ * once per window.
+ * <p>
+ * At most <code>tableSize</code> keys are tracked; once the table is full,
+ * further errors share a single overflow entry until idle keys expire.
+ * <p>
+ * Summaries are handed to the summary gateway on a separate thread, so a
+ * slow or unavailable backend does not hold up the throttle's timer.  At
+ * most {@link #SUMMARY_QUEUE_SIZE} batches wait for it; batches beyond that
+ * and batches the gateway fails on are counted and lost.
+ */
+public class ReportThrottle {
+
+	public static final int DEFAULT_LIMIT = 10;
+	public static final long DEFAULT_WINDOW = 60000;
+	public static final int DEFAULT_TABLE_SIZE = 1000;
+	public static final int SUMMARY_QUEUE_SIZE = 10;
+
+	private final int limit;
+	private final long window;
+	private final int tableSize;
+	private final ErrorSummaryGateway summaryGateway;
+
+	private final ConcurrentMap<ErrorKey, Occurrences> table = new ConcurrentHashMap<ErrorKey, Occurrences>();
+	private final AtomicInteger tracked = new AtomicInteger();
+	private final Occurrences overflow = new Occurrences(new ErrorKey("*", null, null, null), System.currentTimeMillis());
+	private Timer timer;
+	private ThreadPoolExecutor sender;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+	private final AtomicLong summariesSent = new AtomicLong();
+	private final AtomicLong summariesFailed = new AtomicLong();
+	private final AtomicLong summariesDropped = new AtomicLong();
+
+	/**
+	 * @param summaryGateway receives the summaries, or <code>null</code> to
+	 * only log them.
+	 */
+	public ReportThrottle(int limit, long window, int tableSize, ErrorSummaryGateway summaryGateway) {
+		this.limit = limit;
+		this.window = window;
+		this.tableSize = tableSize;
+		this.summaryGateway = summaryGateway;
+	}
+
+	public synchronized void start() {
+		if (timer == null) {
+			if (summaryGateway != null) {
+				sender = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(SUMMARY_QUEUE_SIZE), new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "AnalyticsSummaryDispatcher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			timer = new Timer("AnalyticsReportThrottle", true);
+			timer.schedule(new TimerTask() {
+				public void run() {
+					flush();
+				}
+			}, window, window);
+		}
+	}
+
+	/**
+	 * Sends the summaries of the current period and waits at most
+	 * <code>timeout</code> ms for the summaries still being sent.
+	 */
+	public synchronized void stop(long timeout) {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+			flush();
+			if (sender != null) {
+				sender.shutdown();
+				try {
+					if (!sender.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+						summariesDropped.addAndGet(countQueued(sender.shutdownNow()));
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				sender = null;
+			}
+		}
+	}
+
+	private static long countQueued(List<Runnable> tasks) {
+		long count = 0;
+		for (Runnable task : tasks) {
+			if (task instanceof SummaryTask) {
+				count += ((SummaryTask) task).summaries.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Records an occurrence of <code>exception</code>.
+	 *
+	 * @return whether a full report should be sent for it.
+	 */
+	public boolean admit(WrappedException exception) {
+		long now = System.currentTimeMillis();
+		Occurrences occurrences = lookup(new ErrorKey(exception.getExceptionType(), exception.getFileName(),
+				exception.getMethodName(), exception.getLineNumber()), now);
+		if (occurrences.record(now, window, limit)) {
+			admitted.incrementAndGet();
+			return true;
+		}
+		suppressed.incrementAndGet();
+		return false;
+	}
+
+	private Occurrences lookup(ErrorKey key, long now) {
+		Occurrences occurrences = table.get(key);
+		if (occurrences != null) {
+			return occurrences;
+		}
+		if (tracked.incrementAndGet() > tableSize) {
+			tracked.decrementAndGet();
+			return overflow;
+		}
+		Occurrences created = new Occurrences(key, now);
+		occurrences = table.putIfAbsent(key, created);
+		if (occurrences != null) {
+			tracked.decrementAndGet();
+			return occurrences;
+		}
+		return created;
+	}
+
+	/**
+	 * Sends the summaries of the period that just ended and forgets errors
+	 * that did not occur during it.
+	 */
+	void flush() {
+		long now = System.currentTimeMillis();
+		List<ErrorSummary> summaries = new ArrayList<ErrorSummary>();
+		for (Iterator<Occurrences> it = table.values().iterator(); it.hasNext();) {
+			Occurrences occurrences = it.next();
+			ErrorSummary summary = occurrences.summarize();
+			if (summary != null) {
+				summaries.add(summary);
+			} else if (now - occurrences.lastSeen > window) {
+				it.remove();
+				tracked.decrementAndGet();
+			}
+		}
+		ErrorSummary summary = overflow.summarize();
+		if (summary != null) {
+			summaries.add(summary);
+		}
+		if (summaries.isEmpty()) {
+			return;
+		}
+		ThreadPoolExecutor sender = this.sender;
+		if (sender != null) {
+			try {
+				sender.execute(new SummaryTask(summaries));
+			} catch (RejectedExecutionException e) {
+				summariesDropped.addAndGet(summaries.size());
+			}
+		} else if (summaryGateway != null) {
+			new SummaryTask(summaries).run();
+		} else {
+			for (ErrorSummary s : summaries) {
+				System.out.println("AnalyticsFilter: Suppressed reports: " + s);
+			}
+			summariesSent.addAndGet(summaries.size());
+		}
+	}
+
+	private final class SummaryTask implements Runnable {
+		private final List<ErrorSummary> summaries;
+
+		SummaryTask(List<ErrorSummary> summaries) {
+			this.summaries = summaries;
+		}
+
+		public void run() {
+			try {
+				summaryGateway.sendSummary(summaries);
+				summariesSent.addAndGet(summaries.size());
+			} catch (Throwable e) {
+				summariesFailed.addAndGet(summaries.size());
+				System.out.println("AnalyticsFilter: Failed to send " + summaries.size() + " error summaries: " + e);
+			}
+		}
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	public int getTrackedCount() {
+		return tracked.get();
+	}
+
+	public long getAdmittedCount() {
+		return admitted.get();
+	}
+
+	public long getSuppressedCount() {
+		return suppressed.get();
+	}
+
+	public long getSummariesSentCount() {
+		return summariesSent.get();
+	}
+
+	/**
+	 * @return the number of summaries the gateway failed to send.
+	 */
+	public long getSummariesFailedCount() {
+		return summariesFailed.get();
+	}
+
+	/**
+	 * @return the number of summaries lost because too many were waiting
+	 * for the gateway.
+	 */
+	public long getSummariesDroppedCount() {
+		return summariesDropped.get();
+	}
+
+	private static final class ErrorKey {
+		private final String exceptionType;
+		private final String fileName;
+		private final String methodName;
+		private final Integer lineNumber;
+		private final int hash;
+
+		ErrorKey(String exceptionType, String fileName, String methodName, Integer lineNumber) {
+			this.exceptionType = exceptionType;
+			this.fileName = fileName;
+			this.methodName = methodName;
+			this.lineNumber = lineNumber;
+			int h = exceptionType == null? 0 : exceptionType.hashCode();
+			h = 31 * h + (fileName == null? 0 : fileName.hashCode());
+			h = 31 * h + (methodName == null? 0 : methodName.hashCode());
+			this.hash = 31 * h + (lineNumber == null? 0 : lineNumber.intValue());
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ErrorKey)) {
+				return false;
+			}
+			ErrorKey other = (ErrorKey) o;
+			return hash == other.hash && eq(exceptionType, other.exceptionType) && eq(fileName, other.fileName) &&
+					eq(methodName, other.methodName) && eq(lineNumber, other.lineNumber);
+		}
+
+		private static boolean eq(Object a, Object b) {
+			return a == null? b == null : a.equals(b);
+		}
+	}
+
+	private static final class Occurrences {
+		private final ErrorKey key;
+		private final AtomicLong windowStart;
+		private final AtomicInteger windowCount = new AtomicInteger();
+		private final AtomicLong periodCount = new AtomicLong();
+		private final AtomicLong periodSuppressed = new AtomicLong();
+		// first occurrence of the current period, 0 until there is one
+		private final AtomicLong firstSeen = new AtomicLong();
+		private volatile long lastSeen;
+
+		Occurrences(ErrorKey key, long now) {
+			this.key = key;
+			this.windowStart = new AtomicLong(now);
+			this.lastSeen = now;
+		}
+
+		boolean record(long now, long window, int limit) {
+			long start = windowStart.get();
+			if (now - start >= window && windowStart.compareAndSet(start, now)) {
+				windowCount.set(0);
+			}
+			if (firstSeen.get() == 0) {
+				firstSeen.compareAndSet(0, now);
+			}
+			lastSeen = now;
+			periodCount.incrementAndGet();
+			if (windowCount.incrementAndGet() <= limit) {
+				return true;
+			}
+			periodSuppressed.incrementAndGet();
+			return false;
+		}
+
+		/**
+		 * @return the summary of the current period if anything was
+		 * suppressed in it, resetting the period counters.
+		 */
+		ErrorSummary summarize() {
+			long count = periodCount.getAndSet(0);
+			long suppressedCount = periodSuppressed.getAndSet(0);
+			long first = firstSeen.getAndSet(0);
+			long last = lastSeen;
+			if (suppressedCount == 0) {
+				return null;
+			}
+			return new ErrorSummary(key.exceptionType, key.fileName, key.methodName, key.lineNumber,
+					count, suppressedCount, first == 0? last : first, last);
+		}
+	}
+}
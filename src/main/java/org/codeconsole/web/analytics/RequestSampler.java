@@ -0,0 +1,175 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codeconsole.web.analytics.metrics.StripedLongArray;
+
+/**
+ * Decides which requests are recorded in the session history.  In
+ * {@link Mode#FIXED} mode a fixed fraction of requests is sampled; in
+ * {@link Mode#ADAPTIVE} mode the rate is recomputed every second so that
+ * no more than <code>targetRate</code> requests per second are recorded
+ * and the filter spends no more than <code>targetOverhead</code>
+ * nanoseconds per second on recording.  Requests that failed, did not
+ * return a 2xx status or took longer than the slow threshold are always
+ * recorded, see {@link #mustRecord(int, boolean, long)}.
+ * <p>
+ * Sampled requests carry a weight of <code>1 / rate</code> so that
+ * aggregates computed from the history can be scaled back up.
+ */
+public class RequestSampler {
+
+	public enum Mode { OFF, FIXED, ADAPTIVE }
+
+	public static final double DEFAULT_MIN_RATE = 0.01;
+	public static final long DEFAULT_SLOW_THRESHOLD = 1000;
+
+	private static final long WINDOW_NANOS = 1000000000L;
+
+	// striped counters: requests seen, requests sampled, nanoseconds spent recording
+	private static final int SEEN = 0;
+	private static final int SAMPLED = 1;
+	private static final int OVERHEAD = 2;
+
+	private static final ThreadLocal<long[]> RANDOM = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[] { System.nanoTime() ^ Thread.currentThread().getId() * 0x9E3779B97F4A7C15L | 1 };
+		}
+	};
+
+	private final Mode mode;
+	private final double maxRate;
+	private final double minRate;
+	private final double targetRate;
+	private final long targetOverhead;
+	private final long slowThresholdNanos;
+
+	private volatile double rate;
+	private final StripedLongArray counters = new StripedLongArray(3);
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	// only touched by the thread that won the window roll
+	private long lastSeen;
+	private long lastSampled;
+	private long lastOverhead;
+
+	/**
+	 * @param rate the fixed rate, or the highest rate in adaptive mode.
+	 * @param minRate the lowest rate adaptive mode may fall to.
+	 * @param targetRate requests per second to record in adaptive mode, 0 for no limit.
+	 * @param targetOverhead nanoseconds per second the filter may spend recording in adaptive mode, 0 for no limit.
+	 * @param slowThreshold requests taking longer than this many milliseconds are always recorded.
+	 */
+	public RequestSampler(Mode mode, double rate, double minRate, double targetRate, long targetOverhead, long slowThreshold) {
+		if (rate <= 0 || rate > 1 || minRate <= 0 || minRate > rate) {
+			throw new IllegalArgumentException("Sampling rates must satisfy 0 < min-rate <= rate <= 1");
+		}
+		this.mode = mode;
+		this.maxRate = rate;
+		this.minRate = minRate;
+		this.targetRate = targetRate;
+		this.targetOverhead = targetOverhead;
+		this.slowThresholdNanos = slowThreshold * 1000000;
+		this.rate = mode == Mode.OFF? 1 : rate;
+	}
+
+	/**
+	 * Called before anything is allocated for a request.
+	 *
+	 * @param now the current {@link System#nanoTime()}
+	 * @return the sampling rate if the request is sampled, or 0 if it is not.
+	 */
+	public double sample(long now) {
+		if (mode == Mode.OFF) {
+			return 1;
+		}
+		if (mode == Mode.ADAPTIVE) {
+			counters.increment(SEEN);
+			long start = windowStart.get();
+			if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+				adapt(now - start);
+			}
+		}
+		double current = rate;
+		if (current < 1 && nextDouble() >= current) {
+			return 0;
+		}
+		if (mode == Mode.ADAPTIVE) {
+			counters.increment(SAMPLED);
+		}
+		return current;
+	}
+
+	private void adapt(long elapsed) {
+		long seen = counters.sum(SEEN);
+		long sampled = counters.sum(SAMPLED);
+		long overhead = counters.sum(OVERHEAD);
+		double seconds = elapsed / 1e9;
+		double requestsPerSecond = (seen - lastSeen) / seconds;
+		double next = maxRate;
+		if (targetRate > 0 && requestsPerSecond > 0) {
+			next = Math.min(next, targetRate / requestsPerSecond);
+		}
+		if (targetOverhead > 0 && sampled > lastSampled && requestsPerSecond > 0) {
+			double overheadPerRequest = (double) (overhead - lastOverhead) / (sampled - lastSampled);
+			next = Math.min(next, targetOverhead / (requestsPerSecond * overheadPerRequest));
+		}
+		rate = Math.max(minRate, next);
+		lastSeen = seen;
+		lastSampled = sampled;
+		lastOverhead = overhead;
+	}
+
+	private static double nextDouble() {
+		long[] state = RANDOM.get();
+		long x = state[0];
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+		state[0] = x;
+		return (x >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * @return whether a request must be recorded whether or not it was sampled.
+	 */
+	public boolean mustRecord(int status, boolean failed, long processingNanos) {
+		return failed || status < 200 || status >= 300 || processingNanos > slowThresholdNanos;
+	}
+
+	/**
+	 * Feeds the time the filter spent recording a sampled request back
+	 * into the adaptive rate.
+	 */
+	public void recordOverhead(long nanos) {
+		if (mode == Mode.ADAPTIVE) {
+			counters.add(OVERHEAD, nanos);
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the fraction of requests currently sampled.
+	 */
+	public double getRate() {
+		return rate;
+	}
+}
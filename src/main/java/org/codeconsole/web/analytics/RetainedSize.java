@@ -0,0 +1,78 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.Map;
+
+/**
+ * Rough estimates of the heap retained by captured requests, assuming a
+ * 64 bit JVM with compressed references.  They are meant for budgeting,
+ * not for exact accounting: shared and interned strings are counted as if
+ * they were owned.
+ */
+final class RetainedSize {
+
+	static final int OBJECT_HEADER = 16;
+	static final int ARRAY_HEADER = 16;
+	static final int REFERENCE = 4;
+	static final int MAP_ENTRY = 32;
+
+	private RetainedSize() { }
+
+	static long of(String value) {
+		return value == null? 0 : OBJECT_HEADER + 8 + ARRAY_HEADER + 2L * value.length();
+	}
+
+	static long of(String[] values) {
+		if (values == null) {
+			return 0;
+		}
+		long size = ARRAY_HEADER + (long) REFERENCE * values.length;
+		for (String value : values) {
+			size += of(value);
+		}
+		return size;
+	}
+
+	static long of(Map<String, String[]> parameters) {
+		if (parameters == null) {
+			return 0;
+		}
+		// the map, its table at the default load factor and the entries
+		long size = 48 + ARRAY_HEADER + (long) REFERENCE * 2 * parameters.size();
+		for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+			size += MAP_ENTRY + of(entry.getKey()) + of(entry.getValue());
+		}
+		return size;
+	}
+
+	static long of(StackTraceElement[] frames) {
+		if (frames == null) {
+			return 0;
+		}
+		long size = ARRAY_HEADER + (long) REFERENCE * frames.length;
+		for (StackTraceElement frame : frames) {
+			// method and file names are interned and shared with the class
+			size += OBJECT_HEADER + 16 + of(frame.getClassName());
+		}
+		return size;
+	}
+
+	static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+}
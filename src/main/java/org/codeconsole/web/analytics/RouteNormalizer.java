@@ -0,0 +1,244 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps request URIs to route templates so that <code>/orders/81723</code>
+ * and <code>/orders/81724</code> are both counted as
+ * <code>/orders/{id}</code>.
+ * <p>
+ * Configured templates use <code>{name}</code> for a single variable
+ * segment and may end in <code>**</code> to match any remainder.  They are
+ * compiled into a segment trie where literal segments take precedence over
+ * variables.  URIs matching no configured template are normalized by
+ * replacing numeric, UUID and long hexadecimal segments with
+ * <code>{id}</code>, <code>{uuid}</code> and <code>{hex}</code>.  At most
+ * <code>maxTemplates</code> distinct learned templates are kept; URIs that
+ * would add more are reported as {@link #OVERFLOW_TEMPLATE}.
+ */
+public class RouteNormalizer {
+
+	public static final int DEFAULT_MAX_TEMPLATES = 1000;
+	public static final String OVERFLOW_TEMPLATE = "/_other";
+
+	private static final String ANY_REMAINDER = "**";
+
+	private final Node root = new Node();
+	private final boolean configured;
+	private final int maxTemplates;
+	private final ConcurrentMap<String, String> learned = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger learnedCount = new AtomicInteger();
+
+	public RouteNormalizer() {
+		this(new ArrayList<String>(), DEFAULT_MAX_TEMPLATES);
+	}
+
+	public RouteNormalizer(List<String> templates, int maxTemplates) {
+		for (String template : templates) {
+			add(template);
+		}
+		this.configured = !templates.isEmpty();
+		this.maxTemplates = maxTemplates;
+	}
+
+	private void add(String template) {
+		Node node = root;
+		int length = template.length();
+		int start = template.startsWith("/")? 1 : 0;
+		while (start <= length) {
+			int end = template.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+			String segment = template.substring(start, end);
+			if (ANY_REMAINDER.equals(segment)) {
+				if (end != length) {
+					throw new IllegalArgumentException(ANY_REMAINDER + " must be the last segment of " + template);
+				}
+				node.remainder = template;
+				return;
+			}
+			if (segment.startsWith("{") && segment.endsWith("}")) {
+				if (node.variable == null) {
+					node.variable = new Node();
+				}
+				node = node.variable;
+			} else {
+				Node child = node.literals.get(segment);
+				if (child == null) {
+					child = new Node();
+					node.literals.put(segment, child);
+				}
+				node = child;
+			}
+			start = end + 1;
+		}
+		node.template = template;
+	}
+
+	/**
+	 * @param uri the request URI without query string or path parameters.
+	 * @return the route template for <code>uri</code>.
+	 */
+	public String normalize(String uri) {
+		if (configured) {
+			String template = match(root, uri, uri.startsWith("/")? 1 : 0);
+			if (template != null) {
+				return template;
+			}
+		}
+		return learn(uri);
+	}
+
+	private static String match(Node node, String uri, int start) {
+		int length = uri.length();
+		if (start > length) {
+			return node.template;
+		}
+		int end = uri.indexOf('/', start);
+		if (end < 0) {
+			end = length;
+		}
+		String template = null;
+		if (!node.literals.isEmpty()) {
+			Node child = node.literals.get(uri.substring(start, end));
+			if (child != null) {
+				template = match(child, uri, end + 1);
+			}
+		}
+		if (template == null && node.variable != null && end > start) {
+			template = match(node.variable, uri, end + 1);
+		}
+		return template == null? node.remainder : template;
+	}
+
+	private String learn(String uri) {
+		String template = collapse(uri);
+		String known = learned.get(template);
+		if (known != null) {
+			return known;
+		}
+		if (learnedCount.get() >= maxTemplates) {
+			return OVERFLOW_TEMPLATE;
+		}
+		known = learned.putIfAbsent(template, template);
+		if (known != null) {
+			return known;
+		}
+		if (learnedCount.incrementAndGet() > maxTemplates) {
+			learned.remove(template);
+			learnedCount.decrementAndGet();
+			return OVERFLOW_TEMPLATE;
+		}
+		return template;
+	}
+
+	/**
+	 * @return <code>uri</code> with variable looking segments replaced, or
+	 * <code>uri</code> itself if it has none.
+	 */
+	static String collapse(String uri) {
+		StringBuilder template = null;
+		int length = uri.length();
+		int start = 0;
+		while (start < length) {
+			int end = uri.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+			String placeholder = placeholder(uri, start, end);
+			if (placeholder != null) {
+				if (template == null) {
+					template = new StringBuilder(length);
+					template.append(uri, 0, start);
+				}
+				template.append(placeholder);
+			} else if (template != null) {
+				template.append(uri, start, end);
+			}
+			if (template != null && end < length) {
+				template.append('/');
+			}
+			start = end + 1;
+		}
+		return template == null? uri : template.toString();
+	}
+
+	private static String placeholder(String uri, int start, int end) {
+		int length = end - start;
+		if (length == 0) {
+			return null;
+		}
+		boolean digits = true;
+		boolean hex = true;
+		boolean hasDigit = false;
+		for (int i = start; i < end; i++) {
+			char c = uri.charAt(i);
+			if (c >= '0' && c <= '9') {
+				hasDigit = true;
+			} else {
+				digits = false;
+				if (!(c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')) {
+					hex = false;
+				}
+			}
+		}
+		if (digits) {
+			return "{id}";
+		}
+		if (length == 36 && isUuid(uri, start)) {
+			return "{uuid}";
+		}
+		if (hex && hasDigit && length >= 8) {
+			return "{hex}";
+		}
+		return null;
+	}
+
+	private static boolean isUuid(String uri, int start) {
+		for (int i = 0; i < 36; i++) {
+			char c = uri.charAt(start + i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-') {
+					return false;
+				}
+			} else if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getLearnedCount() {
+		return learned.size();
+	}
+
+	private static final class Node {
+		final Map<String, Node> literals = new HashMap<String, Node>();
+		Node variable;
+		String template;
+		String remainder;
+	}
+}
@@ -0,0 +1,178 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpSession;
+
+/**
+ * Stores {@link AnalyticsSession}s in the {@link HttpSession} and re-sets the
+ * attribute only when the session changed, so that clustered containers
+ * replicate it only when needed.
+ * <p>
+ * In {@link Mode#DELTA} mode the history is left out of the session
+ * attribute and written in segments of <code>segmentSize</code> entries under
+ * separate <code>&lt;attribute&gt;.history.&lt;n&gt;</code> attributes.  Each
+ * request then replicates only the segment its entry went into.
+ * <p>
+ * Sessions whose history is kept in an {@link OffHeapHistoryStore} only
+ * hold a key to it, so their history is never replicated in either mode.
+ */
+public class SessionReplicator {
+
+	public enum Mode { FULL, DELTA }
+
+	public static final int DEFAULT_SEGMENT_SIZE = 10;
+
+	private final String attributeName;
+	private final String segmentPrefix;
+	private final Mode mode;
+	private final int segmentSize;
+
+	public SessionReplicator(String attributeName, Mode mode, int segmentSize) {
+		this.attributeName = attributeName;
+		this.segmentPrefix = attributeName + ".history.";
+		this.mode = mode;
+		this.segmentSize = Math.max(1, segmentSize);
+	}
+
+	/**
+	 * @return the analytics session stored in <code>session</code>, with its
+	 * history restored from the segments if it was replicated in delta mode.
+	 */
+	public AnalyticsSession getSession(HttpSession session) {
+		AnalyticsSession analyticsSession = (AnalyticsSession) session.getAttribute(attributeName);
+		if (analyticsSession != null && !analyticsSession.isHistoryRestored()) {
+			restore(session, analyticsSession);
+		}
+		return analyticsSession;
+	}
+
+	/**
+	 * Stores a newly created analytics session.
+	 */
+	public void register(HttpSession session, AnalyticsSession analyticsSession) {
+		analyticsSession.setHistoryDetached(mode == Mode.DELTA && !analyticsSession.isHistoryOffHeap());
+		analyticsSession.takeModified();
+		session.setAttribute(attributeName, analyticsSession);
+		analyticsSession.markReplicated(analyticsSession.getAppendCount(), analyticsSession.getFirstSequence());
+	}
+
+	/**
+	 * Writes whatever changed since the last call back to the session.
+	 */
+	public void replicate(HttpSession session, AnalyticsSession analyticsSession) {
+		long appendCount = analyticsSession.getAppendCount();
+		long firstSequence = analyticsSession.getFirstSequence();
+		long replicated = analyticsSession.getReplicatedAppendCount();
+		boolean modified = analyticsSession.takeModified();
+
+		if (analyticsSession.isHistoryOffHeap()) {
+			if (modified) {
+				session.setAttribute(attributeName, analyticsSession);
+			}
+		} else if (!analyticsSession.isHistoryDetached()) {
+			if (modified || appendCount != replicated) {
+				session.setAttribute(attributeName, analyticsSession);
+			}
+		} else {
+			if (modified) {
+				session.setAttribute(attributeName, analyticsSession);
+			}
+			if (appendCount > replicated) {
+				writeSegments(session, analyticsSession.getHistorySnapshot(), Math.max(replicated, firstSequence), appendCount);
+			}
+			// drop segments that fell out of the history
+			long previousFirst = analyticsSession.getReplicatedFirstSequence();
+			for (long segment = previousFirst / segmentSize; segment < firstSequence / segmentSize; segment++) {
+				session.removeAttribute(segmentPrefix + segment);
+			}
+		}
+		analyticsSession.markReplicated(appendCount, firstSequence);
+	}
+
+	private void writeSegments(HttpSession session, List<AnalyticsHttpRequest> snapshot, long from, long to) {
+		for (long segment = from / segmentSize; segment <= (to - 1) / segmentSize; segment++) {
+			long start = segment * segmentSize;
+			long end = start + segmentSize;
+			List<AnalyticsHttpRequest> entries = new ArrayList<AnalyticsHttpRequest>(segmentSize);
+			long first = -1;
+			for (AnalyticsHttpRequest request : snapshot) {
+				long sequence = request.getSequence();
+				if (sequence >= start && sequence < end) {
+					if (first < 0) {
+						first = sequence;
+					}
+					entries.add(request);
+				}
+			}
+			if (!entries.isEmpty()) {
+				session.setAttribute(segmentPrefix + segment, new HistorySegment(first, entries));
+			}
+		}
+	}
+
+	private void restore(HttpSession session, AnalyticsSession analyticsSession) {
+		List<HistorySegment> segments = new ArrayList<HistorySegment>();
+		for (Enumeration<?> names = session.getAttributeNames(); names.hasMoreElements();) {
+			String name = (String) names.nextElement();
+			if (name.startsWith(segmentPrefix)) {
+				Object segment = session.getAttribute(name);
+				if (segment instanceof HistorySegment) {
+					segments.add((HistorySegment) segment);
+				}
+			}
+		}
+		Collections.sort(segments, new Comparator<HistorySegment>() {
+			public int compare(HistorySegment a, HistorySegment b) {
+				return a.getFirstSequence() < b.getFirstSequence()? -1 : a.getFirstSequence() == b.getFirstSequence()? 0 : 1;
+			}
+		});
+
+		long floor = analyticsSession.getDetachedFirstSequence();
+		List<AnalyticsHttpRequest> entries = new ArrayList<AnalyticsHttpRequest>();
+		long next = floor;
+		for (HistorySegment segment : segments) {
+			long sequence = segment.getFirstSequence();
+			for (AnalyticsHttpRequest request : segment.getEntries()) {
+				if (sequence >= floor) {
+					entries.add(request);
+					next = sequence + 1;
+				}
+				sequence++;
+			}
+		}
+		analyticsSession.restoreHistory(next - entries.size(), entries);
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+}
@@ -0,0 +1,135 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.codeconsole.web.analytics.metrics.StripedLongArray;
+
+/**
+ * Bounded, lock-free pool of canonical strings for the values that repeat
+ * across history entries: URLs, methods, query strings, parameter names,
+ * route templates and source revisions.  The pool is a direct-mapped table
+ * of {@link #getCapacity()} slots; a value that hashes to a taken slot
+ * replaces it, so the pool never grows, frequently seen values win their
+ * slot back quickly and rarely seen ones are simply forgotten.  Pooled
+ * strings are ordinary heap strings and are collected once nothing else
+ * refers to them after they lost their slot.
+ * <p>
+ * One pool is shared by the whole application, see {@link #getShared()},
+ * so deserialized sessions are canonicalized together with live ones.
+ */
+public class StringPool {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final int HITS = 0;
+	private static final int MISSES = 1;
+	private static final int SAVED = 2;
+
+	private static volatile StringPool shared = new StringPool(DEFAULT_CAPACITY);
+
+	private final AtomicReferenceArray<String> slots;
+	private final int mask;
+	private final StripedLongArray stats = new StripedLongArray(3);
+
+	/**
+	 * @param capacity rounded up to a power of two; 0 disables pooling.
+	 */
+	public StringPool(int capacity) {
+		int size = capacity <= 0? 0 : Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		slots = new AtomicReferenceArray<String>(size);
+		mask = size - 1;
+	}
+
+	public static StringPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * Replaces the application-wide pool, e.g. to change its capacity.
+	 */
+	public static void setShared(StringPool pool) {
+		shared = pool;
+	}
+
+	/**
+	 * @return the pooled string equal to <code>value</code>, or
+	 * <code>value</code> itself (converted to a string), which then becomes
+	 * the pooled one.  Buffers are only converted to a string on a miss.
+	 */
+	public String canonicalize(CharSequence value) {
+		if (value == null) {
+			return null;
+		}
+		if (mask < 0) {
+			return value.toString();
+		}
+		int hash = hash(value);
+		int index = (hash ^ (hash >>> 16)) & mask;
+		String pooled = slots.get(index);
+		if (pooled != null && pooled.hashCode() == hash && pooled.contentEquals(value)) {
+			stats.increment(HITS);
+			if (pooled != value) {
+				stats.add(SAVED, RetainedSize.of(pooled));
+			}
+			return pooled;
+		}
+		String string = value.toString();
+		slots.set(index, string);
+		stats.increment(MISSES);
+		return string;
+	}
+
+	/**
+	 * @return the same value as {@link String#hashCode()}.
+	 */
+	private static int hash(CharSequence value) {
+		if (value instanceof String) {
+			return value.hashCode();
+		}
+		int hash = 0;
+		for (int i = 0, length = value.length(); i < length; i++) {
+			hash = 31 * hash + value.charAt(i);
+		}
+		return hash;
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	public long getHitCount() {
+		return stats.sum(HITS);
+	}
+
+	public long getMissCount() {
+		return stats.sum(MISSES);
+	}
+
+	/**
+	 * @return the estimated heap saved by returning pooled strings instead
+	 * of keeping equal copies.  Copies that were already garbage, like the
+	 * buffers of request URLs, are counted as well.
+	 */
+	public long getSavedBytes() {
+		return stats.sum(SAVED);
+	}
+}
@@ -0,0 +1,221 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Matches URIs against the <code>exclude-urls</code> rules (and parameter
+ * names against the <code>exclude-params</code> rules).  Rules are
+ * compiled once: plain literals go into a set, <code>literal.*</code> and
+ * <code>.*literal</code> rules into prefix and suffix tries, and only the
+ * remaining real regular expressions are combined into a single
+ * alternation.  Decisions are cached per URI in a bounded map.
+ */
+public class UrlExclusionMatcher {
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private static final String META_CHARACTERS = "\\.[]{}()*+?^$|";
+
+	private final Set<String> literals = new HashSet<String>();
+	private final TrieNode prefixes = new TrieNode();
+	private final TrieNode suffixes = new TrieNode();
+	private final Pattern[] regexes;
+	private final boolean empty;
+
+	private final int cacheSize;
+	private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicInteger cached = new AtomicInteger();
+
+	public UrlExclusionMatcher(List<String> rules) {
+		this(rules, DEFAULT_CACHE_SIZE);
+	}
+
+	public UrlExclusionMatcher(List<String> rules, int cacheSize) {
+		this.cacheSize = cacheSize;
+		List<String> regexes = new ArrayList<String>();
+		for (String rule : rules) {
+			Pattern.compile(rule); // fail on invalid rules regardless of how they are stored
+			String body = stripAnchors(rule);
+			String literal;
+			if ((literal = unescape(body)) != null) {
+				literals.add(literal);
+			} else if ((body.endsWith(".*") && (literal = unescape(body.substring(0, body.length() - 2))) != null)) {
+				prefixes.add(literal, false);
+			} else if ((body.startsWith(".*") && (literal = unescape(body.substring(2))) != null)) {
+				suffixes.add(literal, true);
+			} else {
+				regexes.add(rule);
+			}
+		}
+		this.regexes = combine(regexes);
+		this.empty = rules.isEmpty();
+	}
+
+	private static String stripAnchors(String rule) {
+		int start = rule.startsWith("^")? 1 : 0;
+		int end = rule.length();
+		if (end > start && rule.endsWith("$") && !rule.endsWith("\\$")) {
+			end--;
+		}
+		return rule.substring(start, end);
+	}
+
+	/**
+	 * @return the literal text matched by <code>rule</code>, or
+	 * <code>null</code> if it contains unescaped meta characters.
+	 */
+	private static String unescape(String rule) {
+		StringBuilder literal = new StringBuilder(rule.length());
+		for (int i = 0; i < rule.length(); i++) {
+			char c = rule.charAt(i);
+			if (c == '\\') {
+				if (++i == rule.length()) {
+					return null;
+				}
+				c = rule.charAt(i);
+				if (Character.isLetterOrDigit(c)) {
+					return null; // \d, \w, \Q... and friends
+				}
+			} else if (META_CHARACTERS.indexOf(c) >= 0) {
+				return null;
+			}
+			literal.append(c);
+		}
+		return literal.toString();
+	}
+
+	private static Pattern[] combine(List<String> regexes) {
+		List<Pattern> compiled = new ArrayList<Pattern>();
+		StringBuilder combined = new StringBuilder();
+		Pattern backReference = Pattern.compile("\\\\[1-9]");
+		for (String regex : regexes) {
+			if (backReference.matcher(regex).find()) {
+				// back references would be renumbered by the alternation
+				compiled.add(Pattern.compile(regex));
+				continue;
+			}
+			if (combined.length() > 0) {
+				combined.append('|');
+			}
+			combined.append("(?:").append(regex).append(')');
+		}
+		if (combined.length() > 0) {
+			compiled.add(Pattern.compile(combined.toString()));
+		}
+		return compiled.toArray(new Pattern[compiled.size()]);
+	}
+
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	public boolean isExcluded(String uri) {
+		if (empty) {
+			return false;
+		}
+		Boolean decision = cache.get(uri);
+		if (decision == null) {
+			decision = Boolean.valueOf(evaluate(uri));
+			if (cached.incrementAndGet() > cacheSize) {
+				cache.clear();
+				cached.set(1);
+			}
+			cache.put(uri, decision);
+		}
+		return decision.booleanValue();
+	}
+
+	private boolean evaluate(String uri) {
+		if (literals.contains(uri) || prefixes.matches(uri, false) || suffixes.matches(uri, true)) {
+			return true;
+		}
+		for (Pattern regex : regexes) {
+			if (regex.matcher(uri).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getCachedCount() {
+		return cache.size();
+	}
+
+	/**
+	 * Character trie; suffixes are stored and walked from the end.
+	 */
+	private static final class TrieNode {
+		private char[] keys = new char[0];
+		private TrieNode[] children = new TrieNode[0];
+		private boolean terminal;
+
+		void add(String value, boolean reverse) {
+			TrieNode node = this;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(reverse? value.length() - 1 - i : i);
+				TrieNode child = node.child(c);
+				if (child == null) {
+					child = new TrieNode();
+					int n = node.keys.length;
+					char[] keys = new char[n + 1];
+					TrieNode[] children = new TrieNode[n + 1];
+					System.arraycopy(node.keys, 0, keys, 0, n);
+					System.arraycopy(node.children, 0, children, 0, n);
+					keys[n] = c;
+					children[n] = child;
+					node.keys = keys;
+					node.children = children;
+				}
+				node = child;
+			}
+			node.terminal = true;
+		}
+
+		private TrieNode child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		boolean matches(String value, boolean reverse) {
+			TrieNode node = this;
+			int length = value.length();
+			for (int i = 0; i < length; i++) {
+				if (node.terminal) {
+					return true;
+				}
+				node = node.child(value.charAt(reverse? length - 1 - i : i));
+				if (node == null) {
+					return false;
+				}
+			}
+			return node.terminal;
+		}
+	}
+}
@@ -11,58 +11,100 @@
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
- * 
+ *
  * @author Scott Murphy
  */
 package org.codeconsole.web.analytics;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.io.StringWriter;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
+/**
+ * Captured exception of a request.  Capturing keeps only the exception type,
+ * its <code>toString()</code>, the stack frames and the cause chain; the
+ * printable stack trace is rendered on first access and memoized.  It is
+ * only serialized once it has been rendered.
+ */
 public class WrappedException implements Serializable {
-	
+
 	private static final long serialVersionUID = 1L;
-	
-	private final Exception exception;
-    private final String fileName;
-    private final String methodName;
-    private final Integer lineNumber;
-    private final String stackTrace;
-    private final Date timeStamp;
-    
+	private static final ObjectStreamField[] serialPersistentFields = {};
+
+	/**
+	 * Package prefixes of frames that do not count as application code when
+	 * computing the {@link #getFingerprint() fingerprint}.
+	 */
+	private static final String[] FRAMEWORK_PACKAGES = {
+		"java.", "javax.", "sun.", "com.sun.", "jdk.", "org.springframework.", "org.apache.",
+		"org.eclipse.jetty.", "org.mortbay.", "org.codeconsole.web.analytics." };
+	private static final int FINGERPRINT_FRAMES = 3;
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private String exceptionType;
+	private String description;
+    private String fileName;
+    private String methodName;
+    private Integer lineNumber;
+    private StackTraceElement[] frames;
+    private WrappedException cause;
+    private volatile String stackTrace;
+    private transient volatile long fingerprint;
+    private long timeStamp;
+
 	public WrappedException(Exception exception) {
-		this.exception = exception;
-		this.timeStamp = new Date();
-		StackTraceElement[] stack = exception.getStackTrace();
-		if (stack.length > 0) {
-		    this.fileName = stack[0].getFileName();
-		    this.methodName = stack[0].getMethodName();
-		    this.lineNumber = stack[0].getLineNumber();
-		} else {
-		    this.fileName = null;
-		    this.methodName = null;
-		    this.lineNumber = null;			
+		this(exception, System.currentTimeMillis(), new IdentityHashMap<Throwable, Boolean>());
+	}
+
+	private WrappedException(Throwable exception, long timeStamp, Map<Throwable, Boolean> seen) {
+		seen.put(exception, Boolean.TRUE);
+		this.exceptionType = exception.getClass().getName();
+		this.description = exception.toString();
+		this.timeStamp = timeStamp;
+		this.frames = exception.getStackTrace();
+		if (frames.length > 0) {
+		    this.fileName = frames[0].getFileName();
+		    this.methodName = frames[0].getMethodName();
+		    this.lineNumber = frames[0].getLineNumber();
 		}
-		// writers
-		StringWriter sw = new StringWriter();
-		PrintWriter pw = new PrintWriter(sw);
+		Throwable cause = exception.getCause();
+		if (cause != null && !seen.containsKey(cause)) {
+			this.cause = new WrappedException(cause, timeStamp, seen);
+		}
+	}
 
-		// update stack
-		exception.printStackTrace(pw);
-		this.stackTrace = sw.toString();
+	private WrappedException() { }
 
-		// close writers
-		pw.close();
-		try {
-		    sw.close();
-		} catch (IOException ex) { }
+	/**
+	 * The live exception is no longer retained after capture.
+	 *
+	 * @return <code>null</code>
+	 * @deprecated use {@link #getDescription()}, {@link #getFrames()} and
+	 * {@link #getCause()} instead.
+	 */
+	@Deprecated
+	public Exception getException() {
+		return null;
 	}
 
-	public Exception getException() {
-		return exception;
+	public String getExceptionType() {
+		return exceptionType;
+	}
+
+	/**
+	 * @return the <code>toString()</code> of the captured exception.
+	 */
+	public String getDescription() {
+		return description;
 	}
 
 	public String getFileName() {
@@ -77,11 +119,255 @@ public class WrappedException implements Serializable {
 		return lineNumber;
 	}
 
+	/**
+	 * @return the captured stack frames, or <code>null</code> if this
+	 * instance was read from a format that did not carry them.
+	 */
+	public StackTraceElement[] getFrames() {
+		return frames;
+	}
+
+	public WrappedException getCause() {
+		return cause;
+	}
+
+	/**
+	 * @return the stack trace as printed by
+	 * {@link Throwable#printStackTrace()}, rendered on first call.
+	 */
 	public String getStackTrace() {
-		return stackTrace;
+		String rendered = stackTrace;
+		if (rendered == null && frames != null) {
+			StringBuilder trace = new StringBuilder(256);
+			render(trace, null, "");
+			rendered = trace.toString();
+			stackTrace = rendered;
+		}
+		return rendered;
+	}
+
+	private void render(StringBuilder trace, StackTraceElement[] enclosing, String caption) {
+		trace.append(caption).append(description).append(LINE_SEPARATOR);
+		int m = frames.length - 1;
+		if (enclosing != null) {
+			int n = enclosing.length - 1;
+			while (m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+				m--;
+				n--;
+			}
+		}
+		for (int i = 0; i <= m; i++) {
+			trace.append("\tat ").append(frames[i]).append(LINE_SEPARATOR);
+		}
+		int inCommon = frames.length - 1 - m;
+		if (inCommon != 0) {
+			trace.append("\t... ").append(inCommon).append(" more").append(LINE_SEPARATOR);
+		}
+		if (cause != null) {
+			if (cause.frames != null) {
+				cause.render(trace, frames, "Caused by: ");
+			} else if (cause.getStackTrace() != null) {
+				trace.append("Caused by: ").append(cause.getStackTrace());
+			}
+		}
+	}
+
+	/**
+	 * @return the estimated heap retained by this exception and its causes,
+	 * including the stack trace if it has been rendered.
+	 */
+	public long getRetainedSize() {
+		long size = RetainedSize.OBJECT_HEADER + 8 * RetainedSize.REFERENCE + 16
+				+ RetainedSize.of(exceptionType) + RetainedSize.of(description) + RetainedSize.of(fileName)
+				+ RetainedSize.of(methodName) + RetainedSize.of(frames) + RetainedSize.of(stackTrace)
+				+ (lineNumber == null? 0 : RetainedSize.OBJECT_HEADER);
+		if (cause != null) {
+			size += cause.getRetainedSize();
+		}
+		return RetainedSize.align(size);
+	}
+
+	/**
+	 * @return a hash of the exception type and the topmost application frames
+	 * (or the topmost frames if there are none), so that the same error
+	 * raised from the same place always yields the same value.
+	 */
+	public long getFingerprint() {
+		long hash = fingerprint;
+		if (hash == 0) {
+			hash = computeFingerprint();
+			fingerprint = hash;
+		}
+		return hash;
+	}
+
+	private long computeFingerprint() {
+		long hash = hash(FNV_OFFSET, exceptionType);
+		if (frames == null) {
+			hash = hash(hash, fileName);
+			hash = hash(hash, methodName);
+			return mix(hash, lineNumber == null? -1 : lineNumber.intValue());
+		}
+		int used = 0;
+		for (int i = 0; i < frames.length && used < FINGERPRINT_FRAMES; i++) {
+			if (!isFrameworkFrame(frames[i])) {
+				hash = hash(hash, frames[i]);
+				used++;
+			}
+		}
+		for (int i = 0; used == 0 && i < frames.length && i < FINGERPRINT_FRAMES; i++) {
+			hash = hash(hash, frames[i]);
+		}
+		return hash == 0? 1 : hash;
+	}
+
+	private static boolean isFrameworkFrame(StackTraceElement frame) {
+		String className = frame.getClassName();
+		for (String prefix : FRAMEWORK_PACKAGES) {
+			if (className.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long hash(long hash, StackTraceElement frame) {
+		hash = hash(hash, frame.getClassName());
+		hash = hash(hash, frame.getMethodName());
+		return mix(hash, frame.getLineNumber());
+	}
+
+	private static long hash(long hash, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+			}
+		}
+		return (hash ^ 0xFF) * FNV_PRIME;
+	}
+
+	private static long mix(long hash, int value) {
+		for (int i = 0; i < 4; i++) {
+			hash = (hash ^ (value & 0xFF)) * FNV_PRIME;
+			value >>>= 8;
+		}
+		return hash;
 	}
 
 	public Date getTimeStamp() {
-		return timeStamp;
+		return new Date(timeStamp);
+	}
+
+	void writeCompact(CompactEncoding.Writer writer, long baseTime) throws IOException {
+		DataOutput out = writer.getOutput();
+		writer.writeTableString(exceptionType);
+		CompactEncoding.writeString(out, description);
+		CompactEncoding.writeSignedVarLong(out, timeStamp - baseTime);
+		if (frames != null) {
+			CompactEncoding.writeVarInt(out, frames.length + 1);
+			for (StackTraceElement frame : frames) {
+				writer.writeTableString(frame.getClassName());
+				writer.writeTableString(frame.getMethodName());
+				writer.writeTableString(frame.getFileName());
+				CompactEncoding.writeSignedVarLong(out, frame.getLineNumber());
+			}
+		} else {
+			CompactEncoding.writeVarInt(out, 0);
+			writer.writeTableString(fileName);
+			writer.writeTableString(methodName);
+			CompactEncoding.writeVarInt(out, lineNumber == null? 0 : lineNumber.intValue() + 1);
+		}
+		// only ship the rendered trace if somebody already paid for it
+		CompactEncoding.writeString(out, stackTrace);
+		out.writeBoolean(cause != null);
+		if (cause != null) {
+			cause.writeCompact(writer, timeStamp);
+		}
+	}
+
+	static WrappedException readCompact(CompactEncoding.Reader reader, long baseTime) throws IOException {
+		DataInput in = reader.getInput();
+		WrappedException wrapped = new WrappedException();
+		wrapped.exceptionType = reader.readTableString();
+		wrapped.description = CompactEncoding.readString(in);
+		if (reader.getVersion() < 3) {
+			wrapped.fileName = reader.readTableString();
+			wrapped.methodName = reader.readTableString();
+			wrapped.readLineNumber(in);
+			wrapped.stackTrace = CompactEncoding.readString(in);
+			wrapped.timeStamp = baseTime + CompactEncoding.readSignedVarLong(in);
+			return wrapped;
+		}
+		wrapped.timeStamp = baseTime + CompactEncoding.readSignedVarLong(in);
+		int frameCount = CompactEncoding.readCount(in);
+		if (frameCount > 0) {
+			StackTraceElement[] frames = new StackTraceElement[frameCount - 1];
+			for (int i = 0; i < frames.length; i++) {
+				String className = reader.readTableString();
+				String methodName = reader.readTableString();
+				String fileName = reader.readTableString();
+				frames[i] = new StackTraceElement(className, methodName, fileName, (int) CompactEncoding.readSignedVarLong(in));
+			}
+			wrapped.frames = frames;
+			if (frames.length > 0) {
+				wrapped.fileName = frames[0].getFileName();
+				wrapped.methodName = frames[0].getMethodName();
+				wrapped.lineNumber = frames[0].getLineNumber();
+			}
+		} else {
+			wrapped.fileName = reader.readTableString();
+			wrapped.methodName = reader.readTableString();
+			wrapped.readLineNumber(in);
+		}
+		wrapped.stackTrace = CompactEncoding.readString(in);
+		if (in.readBoolean()) {
+			wrapped.cause = readCompact(reader, wrapped.timeStamp);
+		}
+		return wrapped;
+	}
+
+	private void readLineNumber(DataInput in) throws IOException {
+		int line = CompactEncoding.readVarInt(in);
+		lineNumber = line == 0? null : Integer.valueOf(line - 1);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeByte(CompactEncoding.FORMAT_VERSION);
+		writeCompact(new CompactEncoding.Writer(out), 0);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		WrappedException read;
+		if (fields.getObjectStreamClass().getFields().length > 0) {
+			// stream written before the compact format was introduced
+			Exception exception = (Exception) fields.get("exception", null);
+			Date date = (Date) fields.get("timeStamp", null);
+			long time = date == null? 0 : date.getTime();
+			if (exception != null) {
+				read = new WrappedException(exception, time, new IdentityHashMap<Throwable, Boolean>());
+			} else {
+				read = new WrappedException();
+				read.fileName = (String) fields.get("fileName", null);
+				read.methodName = (String) fields.get("methodName", null);
+				read.lineNumber = (Integer) fields.get("lineNumber", null);
+				read.timeStamp = time;
+			}
+			read.stackTrace = (String) fields.get("stackTrace", null);
+		} else {
+			int version = in.readUnsignedByte();
+			CompactEncoding.checkVersion(version);
+			read = readCompact(new CompactEncoding.Reader(in, version), 0);
+		}
+		exceptionType = read.exceptionType;
+		description = read.description;
+		fileName = read.fileName;
+		methodName = read.methodName;
+		lineNumber = read.lineNumber;
+		frames = read.frames;
+		cause = read.cause;
+		stackTrace = read.stackTrace;
+		timeStamp = read.timeStamp;
 	}
 }
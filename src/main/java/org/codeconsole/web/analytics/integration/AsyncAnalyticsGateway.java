@@ -0,0 +1,251 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codeconsole.web.analytics.AnalyticsSession;
+
+/**
+ * Gateway that hands reports to a bounded queue and delivers them in batches
+ * from background worker threads, so request threads never wait on the
+ * underlying transport.
+ */
+public class AsyncAnalyticsGateway implements AnalyticsGateway {
+
+	public enum OverflowPolicy { DROP_OLDEST, DROP_NEWEST, BLOCK }
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	public static final int DEFAULT_WORKERS = 1;
+	public static final int DEFAULT_BATCH_SIZE = 20;
+	public static final long DEFAULT_BLOCK_TIMEOUT = 100;
+
+	private final BatchAnalyticsGateway delegate;
+
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private int workers = DEFAULT_WORKERS;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+	private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+
+	private volatile BlockingQueue<AnalyticsSession> queue;
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean running;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public AsyncAnalyticsGateway(BatchAnalyticsGateway delegate) {
+		this.delegate = delegate;
+	}
+
+	public AsyncAnalyticsGateway(AnalyticsGateway delegate) {
+		this(delegate instanceof BatchAnalyticsGateway? (BatchAnalyticsGateway) delegate : new SingleSessionBatchAdapter(delegate));
+	}
+
+	/**
+	 * Creates the queue and the worker threads.  Called by the filter on init,
+	 * and lazily on the first report for instances wired up elsewhere.
+	 */
+	public synchronized void start() {
+		if (queue != null) {
+			return;
+		}
+		queue = new ArrayBlockingQueue<AnalyticsSession>(queueSize);
+		running = true;
+		for (int i = 0; i < workers; i++) {
+			Thread thread = new Thread(new Worker(), "AnalyticsDispatcher-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the workers after giving them up to <code>timeout</code> ms to
+	 * deliver whatever is still queued.
+	 */
+	public synchronized void shutdown(long timeout) {
+		if (queue == null || !running) {
+			return;
+		}
+		running = false;
+		long deadline = System.currentTimeMillis() + timeout;
+		for (Thread thread : threads) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				if (remaining > 0) {
+					thread.join(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread.interrupt();
+		}
+		threads.clear();
+		dropped.addAndGet(queue.size());
+		queue.clear();
+	}
+
+	public void sendAnalytics(AnalyticsSession analyticsSession) {
+		BlockingQueue<AnalyticsSession> queue = this.queue;
+		if (queue == null) {
+			start();
+			queue = this.queue;
+		}
+		if (!running) {
+			// shut down, e.g. requests still in flight while the filter is destroyed
+			dropped.incrementAndGet();
+			return;
+		}
+		switch (overflowPolicy) {
+		case DROP_NEWEST:
+			if (!queue.offer(analyticsSession)) {
+				dropped.incrementAndGet();
+				return;
+			}
+			break;
+		case BLOCK:
+			try {
+				if (!queue.offer(analyticsSession, blockTimeout, TimeUnit.MILLISECONDS)) {
+					dropped.incrementAndGet();
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return;
+			}
+			break;
+		default:
+			while (!queue.offer(analyticsSession)) {
+				if (queue.poll() != null) {
+					dropped.incrementAndGet();
+				}
+			}
+		}
+		if (!running && queue.remove(analyticsSession)) {
+			// shut down while offering, no worker is left to drain it
+			dropped.incrementAndGet();
+			return;
+		}
+		enqueued.incrementAndGet();
+	}
+
+	private class Worker implements Runnable {
+		public void run() {
+			List<AnalyticsSession> batch = new ArrayList<AnalyticsSession>(batchSize);
+			while (running || !queue.isEmpty()) {
+				try {
+					AnalyticsSession first = queue.poll(500, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+				} catch (InterruptedException e) {
+					return;
+				}
+				deliver(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void deliver(List<AnalyticsSession> batch) {
+		try {
+			delegate.sendAnalytics(batch);
+			sent.addAndGet(batch.size());
+		} catch (Throwable e) {
+			// including errors such as a missing transport class, which would end the worker
+			failed.addAndGet(batch.size());
+			System.out.println("AnalyticsFilter: Failed to send " + batch.size() + " report(s): " + e);
+		}
+	}
+
+	public BatchAnalyticsGateway getDelegate() {
+		return delegate;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	public void setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	public int getPending() {
+		BlockingQueue<AnalyticsSession> queue = this.queue;
+		return queue == null? 0 : queue.size();
+	}
+
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,30 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import java.util.List;
+
+import org.codeconsole.web.analytics.AnalyticsSession;
+
+/**
+ * Gateway that is able to deliver several reports in one round trip.
+ * Used by {@link AsyncAnalyticsGateway} when draining its queue.
+ */
+public interface BatchAnalyticsGateway {
+
+	public void sendAnalytics(List<AnalyticsSession> analyticsSessions);
+}
@@ -0,0 +1,153 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Caches the revision of a delegate {@link SourceRevisionResolver} so that
+ * it is not looked up for every recorded request.  The revision is resolved
+ * once by {@link #init()}, without a request, and then only refreshed every
+ * <code>refreshInterval</code> ms (never if 0).  If a <code>watchFile</code>
+ * is set, its modification time is checked every <code>refreshInterval</code>
+ * ms, or every {@link #DEFAULT_WATCH_INTERVAL} ms if that is 0, and the
+ * revision only resolved again when it changed or the file is missing.
+ * Refreshes run on the request thread that finds the revision
+ * stale while the other threads keep the current value; failures are
+ * thrown to that thread, as they would be without the cache.
+ * <p>
+ * Revisions are interned, and an unchanged revision keeps its instance, so
+ * all captured requests share one string.  Delegates that need the request
+ * to resolve the revision should not be cached.
+ */
+public class CachingSourceRevisionResolver implements SourceRevisionResolver {
+
+	public static final long DEFAULT_WATCH_INTERVAL = 1000;
+
+	private SourceRevisionResolver delegate;
+	private long refreshInterval;
+	private File watchFile;
+
+	private volatile String revision;
+	private volatile boolean resolved;
+	private volatile long nextRefresh;
+	private long lastModified;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	public CachingSourceRevisionResolver() {
+	}
+
+	public CachingSourceRevisionResolver(SourceRevisionResolver delegate, long refreshInterval, File watchFile) {
+		this.delegate = delegate;
+		this.refreshInterval = refreshInterval;
+		this.watchFile = watchFile;
+	}
+
+	public SourceRevisionResolver getDelegate() {
+		return delegate;
+	}
+
+	public void setDelegate(SourceRevisionResolver delegate) {
+		this.delegate = delegate;
+	}
+
+	public long getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	/**
+	 * @param refreshInterval ms between refreshes, 0 to resolve only once.
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	public File getWatchFile() {
+		return watchFile;
+	}
+
+	public void setWatchFile(File watchFile) {
+		this.watchFile = watchFile;
+	}
+
+	/**
+	 * Resolves the revision ahead of the first request.  If the delegate
+	 * cannot do so without a request, the revision is resolved from the
+	 * first request instead.
+	 */
+	public void init() {
+		refresh(null, System.currentTimeMillis());
+	}
+
+	public String getRevision(HttpServletRequest request) {
+		if (!resolved) {
+			refresh(request, System.currentTimeMillis());
+			if (!resolved) {
+				// being resolved by another request, or failed
+				return delegate.getRevision(request);
+			}
+		} else if (refreshInterval > 0 || watchFile != null) {
+			long now = System.currentTimeMillis();
+			if (now >= nextRefresh) {
+				refresh(request, now);
+			}
+		}
+		return revision;
+	}
+
+	private long getPollInterval() {
+		return refreshInterval == 0 && watchFile != null? DEFAULT_WATCH_INTERVAL : refreshInterval;
+	}
+
+	private void refresh(HttpServletRequest request, long now) {
+		if (!refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			if (resolved && watchFile != null) {
+				long modified = watchFile.lastModified();
+				// 0 if the file is missing, e.g. while it is being replaced
+				if (modified != 0 && modified == lastModified) {
+					nextRefresh = now + getPollInterval();
+					return;
+				}
+			}
+			long modified = watchFile == null? 0 : watchFile.lastModified();
+			String value;
+			try {
+				value = delegate.getRevision(request);
+			} catch (RuntimeException e) {
+				if (request == null) {
+					return; // needs a request, resolved from the first one
+				}
+				throw e;
+			}
+			lastModified = modified;
+			String current = revision;
+			if (value == null || current == null || !value.equals(current)) {
+				revision = value == null? null : value.intern();
+			}
+			nextRefresh = now + getPollInterval();
+			resolved = true;
+		} finally {
+			refreshing.set(false);
+		}
+	}
+}
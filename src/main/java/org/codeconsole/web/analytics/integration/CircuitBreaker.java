@@ -0,0 +1,125 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import java.util.Random;
+
+/**
+ * Tracks consecutive delivery failures.  Each failure delays the next
+ * attempt by an exponentially growing, slightly randomized backoff; after
+ * <code>failureThreshold</code> consecutive failures the breaker opens and
+ * callers should stop trying altogether until the backoff has passed, when
+ * a single probe is let through ({@link State#HALF_OPEN}).  One success
+ * closes the breaker again.
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+	public static final long DEFAULT_MAX_BACKOFF = 5 * 60 * 1000;
+
+	private final int failureThreshold;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final Random random = new Random();
+
+	private int consecutiveFailures;
+	private long retryAt;
+	private boolean probing;
+	private long trips;
+
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	public CircuitBreaker(int failureThreshold, long initialBackoff, long maxBackoff) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.initialBackoff = Math.max(1, initialBackoff);
+		this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+	}
+
+	/**
+	 * @return the number of ms until the next attempt may be made, 0 if it
+	 * may be made now.  Once the breaker is open only one caller at a time
+	 * gets 0, until it reports the outcome.
+	 */
+	public synchronized long getDelay(long now) {
+		if (consecutiveFailures == 0) {
+			return 0;
+		}
+		long delay = Math.max(0, retryAt - now);
+		if (delay == 0 && consecutiveFailures >= failureThreshold) {
+			if (probing) {
+				return initialBackoff;
+			}
+			probing = true;
+		}
+		return delay;
+	}
+
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		probing = false;
+	}
+
+	public synchronized void recordFailure(long now) {
+		consecutiveFailures++;
+		probing = false;
+		if (consecutiveFailures == failureThreshold) {
+			trips++;
+		}
+		long backoff = initialBackoff << Math.min(consecutiveFailures - 1, 30);
+		if (backoff <= 0 || backoff > maxBackoff) {
+			backoff = maxBackoff;
+		}
+		// up to 20% less, so that nodes failing together do not retry together
+		backoff -= (long) (backoff * 0.2 * random.nextDouble());
+		retryAt = now + backoff;
+	}
+
+	public synchronized State getState() {
+		if (consecutiveFailures < failureThreshold) {
+			return State.CLOSED;
+		}
+		return probing || System.currentTimeMillis() >= retryAt? State.HALF_OPEN : State.OPEN;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return how often the breaker has opened.
+	 */
+	public synchronized long getTrips() {
+		return trips;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+}
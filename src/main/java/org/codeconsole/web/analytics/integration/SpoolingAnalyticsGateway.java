@@ -0,0 +1,376 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codeconsole.web.analytics.AnalyticsSession;
+
+/**
+ * Gateway that writes every report to a spool directory before a background
+ * thread delivers it to the delegate, so reports survive an unavailable
+ * backend and a restart, and callers never wait on the backend.
+ * <p>
+ * Spooled batches are delivered oldest first.  Failed deliveries are retried
+ * with exponential backoff, and after repeated failures the
+ * {@link CircuitBreaker} opens and only a single probe is sent per backoff
+ * period.  Files left in the directory by a previous run are replayed on
+ * {@link #start()}.  When the spool grows past <code>maxSpoolBytes</code> the
+ * oldest reports are dropped.
+ */
+public class SpoolingAnalyticsGateway implements AnalyticsGateway, BatchAnalyticsGateway {
+
+	public static final long DEFAULT_MAX_SPOOL_BYTES = 50L * 1024 * 1024;
+
+	private static final String SUFFIX = ".spool";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final BatchAnalyticsGateway delegate;
+	private final File directory;
+
+	private long maxSpoolBytes = DEFAULT_MAX_SPOOL_BYTES;
+	private int failureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+	private long initialBackoff = CircuitBreaker.DEFAULT_INITIAL_BACKOFF;
+	private long maxBackoff = CircuitBreaker.DEFAULT_MAX_BACKOFF;
+
+	private volatile CircuitBreaker breaker = new CircuitBreaker();
+	// spooled file names, which sort oldest first, and their sizes; guarded by this
+	private final TreeMap<String, Long> spool = new TreeMap<String, Long>();
+	private long spoolBytes;
+	private long counter;
+	private volatile Thread thread;
+	private volatile boolean running;
+
+	private final AtomicLong spooled = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong corrupt = new AtomicLong();
+
+	public SpoolingAnalyticsGateway(BatchAnalyticsGateway delegate, File directory) {
+		this.delegate = delegate;
+		this.directory = directory;
+	}
+
+	public SpoolingAnalyticsGateway(AnalyticsGateway delegate, File directory) {
+		this(delegate instanceof BatchAnalyticsGateway? (BatchAnalyticsGateway) delegate : new SingleSessionBatchAdapter(delegate), directory);
+	}
+
+	/**
+	 * Creates the directory, picks up reports spooled by a previous run and
+	 * starts the delivery thread.
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spool directory " + directory);
+		}
+		breaker = new CircuitBreaker(failureThreshold, initialBackoff, maxBackoff);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SUFFIX)) {
+					spool.put(file.getName(), Long.valueOf(file.length()));
+					spoolBytes += file.length();
+				} else if (file.getName().endsWith(TEMP_SUFFIX)) {
+					file.delete(); // incomplete write
+				}
+			}
+		}
+		if (!spool.isEmpty()) {
+			System.out.println("AnalyticsFilter: Replaying " + spool.size() + " spooled report(s).");
+		}
+		trim();
+		running = true;
+		thread = new Thread(new Deliverer(), "AnalyticsSpool");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the delivery thread, waiting at most <code>timeout</code> ms for
+	 * a delivery in progress.  Undelivered reports stay in the spool.
+	 */
+	public void shutdown(long timeout) {
+		Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+			if (thread == null || !running) {
+				return;
+			}
+			running = false;
+			notifyAll();
+		}
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread.interrupt();
+	}
+
+	public void sendAnalytics(AnalyticsSession analyticsSession) {
+		sendAnalytics(Collections.singletonList(analyticsSession));
+	}
+
+	/**
+	 * Writes the batch to the spool and returns; delivery happens on the
+	 * spool thread.
+	 */
+	public void sendAnalytics(List<AnalyticsSession> analyticsSessions) {
+		if (thread == null) {
+			try {
+				start();
+			} catch (IOException e) {
+				dropped.addAndGet(analyticsSessions.size());
+				System.out.println("AnalyticsFilter: Cannot spool report: " + e.getMessage());
+				return;
+			}
+		}
+		byte[] data;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(new ArrayList<AnalyticsSession>(analyticsSessions));
+			out.close();
+			data = bytes.toByteArray();
+		} catch (IOException e) {
+			dropped.addAndGet(analyticsSessions.size());
+			System.out.println("AnalyticsFilter: Cannot serialize report: " + e);
+			return;
+		}
+		long sequence;
+		synchronized (this) {
+			sequence = ++counter;
+		}
+		String name = pad(System.currentTimeMillis(), 13) + "-" + pad(sequence, 10) + SUFFIX;
+		File temp = new File(directory, name + TEMP_SUFFIX);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(new File(directory, name))) {
+				throw new IOException("Cannot rename " + temp);
+			}
+		} catch (IOException e) {
+			temp.delete();
+			dropped.addAndGet(analyticsSessions.size());
+			System.out.println("AnalyticsFilter: Cannot spool report: " + e.getMessage());
+			return;
+		}
+		spooled.addAndGet(analyticsSessions.size());
+		synchronized (this) {
+			spool.put(name, Long.valueOf(data.length));
+			spoolBytes += data.length;
+			trim();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Zero pads <code>value</code> so that spool file names sort by age.
+	 */
+	private static String pad(long value, int digits) {
+		StringBuilder padded = new StringBuilder(digits);
+		String text = Long.toString(value);
+		for (int i = text.length(); i < digits; i++) {
+			padded.append('0');
+		}
+		return padded.append(text).toString();
+	}
+
+	/**
+	 * Drops the oldest reports until the spool fits its budget.
+	 */
+	private synchronized void trim() {
+		while (spoolBytes > maxSpoolBytes && spool.size() > 1) {
+			remove(spool.firstKey());
+			dropped.incrementAndGet();
+		}
+	}
+
+	private synchronized boolean remove(String name) {
+		Long size = spool.remove(name);
+		if (size == null) {
+			return false;
+		}
+		spoolBytes -= size.longValue();
+		new File(directory, name).delete();
+		return true;
+	}
+
+	private class Deliverer implements Runnable {
+		public void run() {
+			while (running) {
+				String name;
+				synchronized (SpoolingAnalyticsGateway.this) {
+					long delay = spool.isEmpty()? 0 : breaker.getDelay(System.currentTimeMillis());
+					if (spool.isEmpty() || delay > 0) {
+						try {
+							SpoolingAnalyticsGateway.this.wait(spool.isEmpty()? 0 : delay);
+						} catch (InterruptedException e) {
+							return;
+						}
+						continue;
+					}
+					name = spool.firstKey();
+				}
+				deliver(name);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void deliver(String name) {
+		List<AnalyticsSession> batch;
+		try {
+			InputStream file = new BufferedInputStream(new FileInputStream(new File(directory, name)));
+			try {
+				batch = (List<AnalyticsSession>) new ObjectInputStream(file).readObject();
+			} finally {
+				file.close();
+			}
+		} catch (Exception e) {
+			// unreadable, e.g. written by an incompatible version
+			if (remove(name)) {
+				corrupt.incrementAndGet();
+				System.out.println("AnalyticsFilter: Discarded unreadable spooled report " + name + ": " + e);
+			}
+			return;
+		}
+		try {
+			delegate.sendAnalytics(batch);
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			CircuitBreaker breaker = this.breaker;
+			boolean wasClosed = breaker.getState() == CircuitBreaker.State.CLOSED;
+			breaker.recordFailure(System.currentTimeMillis());
+			if (wasClosed && breaker.getState() != CircuitBreaker.State.CLOSED) {
+				System.out.println("AnalyticsFilter: Report delivery failing, circuit opened after " +
+						breaker.getConsecutiveFailures() + " failures: " + e);
+			}
+			return;
+		}
+		if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+			System.out.println("AnalyticsFilter: Report delivery recovered, circuit closed.");
+		}
+		breaker.recordSuccess();
+		sent.addAndGet(batch.size());
+		remove(name);
+	}
+
+	public BatchAnalyticsGateway getDelegate() {
+		return delegate;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getMaxSpoolBytes() {
+		return maxSpoolBytes;
+	}
+
+	public void setMaxSpoolBytes(long maxSpoolBytes) {
+		this.maxSpoolBytes = maxSpoolBytes;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Consecutive failures after which the circuit opens.  Takes effect on
+	 * {@link #start()}, as do the backoff settings.
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public long getInitialBackoff() {
+		return initialBackoff;
+	}
+
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return maxBackoff;
+	}
+
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	public synchronized int getPending() {
+		return spool.size();
+	}
+
+	public synchronized long getSpoolBytes() {
+		return spoolBytes;
+	}
+
+	public long getSpooledCount() {
+		return spooled.get();
+	}
+
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * @return the number of failed delivery attempts.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of reports (or spooled batches, when dropped to
+	 * make room) that were lost.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getCorruptCount() {
+		return corrupt.get();
+	}
+}
@@ -1,18 +1,57 @@
 package org.codeconsole.web.analytics.integration;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 
-public class SpringSecurityUserDetailsResolver implements UserDetailsResolver {
+/**
+ * Resolves the principal of the current Spring Security authentication,
+ * or, with <code>compact</code> set, a {@link UserSummary} of its name and
+ * authorities.  The authentication itself serves as the version, so the
+ * principal is only resolved again when the authentication changes.
+ */
+public class SpringSecurityUserDetailsResolver implements VersionedUserDetailsResolver {
+
+	private boolean compact;
 
 	@Override
 	public Serializable getUserDetails(HttpServletRequest request) {
 		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-		return auth == null? null : (Serializable) auth.getPrincipal();
+		if (auth == null) {
+			return null;
+		}
+		if (compact) {
+			List<String> roles = new ArrayList<String>();
+			if (auth.getAuthorities() != null) {
+				for (GrantedAuthority authority : auth.getAuthorities()) {
+					roles.add(authority.getAuthority());
+				}
+			}
+			return new UserSummary(auth.getName(), roles);
+		}
+		return (Serializable) auth.getPrincipal();
+	}
+
+	@Override
+	public Object getVersion(HttpServletRequest request) {
+		return SecurityContextHolder.getContext().getAuthentication();
 	}
 
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Stores a {@link UserSummary} instead of the full principal, which keeps
+	 * large principals out of the analytics session and its replication.
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
 }
@@ -0,0 +1,146 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codeconsole.web.analytics.AnalyticsSession;
+
+/**
+ * Local stand-in for a real gateway, for trying out delivery and failure
+ * handling without a backend.  It keeps the last <code>capacity</code>
+ * reports in memory and can be told to fail, to fail at random or to be
+ * slow, e.g. from a Spring context:
+ * <pre>
+ * &lt;bean id="analyticsGateway" class="org.codeconsole.web.analytics.integration.StubAnalyticsGateway"&gt;
+ *     &lt;property name="failureRate" value="0.5"/&gt;
+ *     &lt;property name="latency" value="2000"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class StubAnalyticsGateway implements AnalyticsGateway, BatchAnalyticsGateway {
+
+	public static final int DEFAULT_CAPACITY = 100;
+
+	private final Random random = new Random();
+	private final List<AnalyticsSession> received = new ArrayList<AnalyticsSession>();
+	private int capacity = DEFAULT_CAPACITY;
+	private volatile boolean failing;
+	private volatile double failureRate;
+	private volatile long latency;
+
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	public void sendAnalytics(AnalyticsSession analyticsSession) {
+		List<AnalyticsSession> batch = new ArrayList<AnalyticsSession>(1);
+		batch.add(analyticsSession);
+		sendAnalytics(batch);
+	}
+
+	public void sendAnalytics(List<AnalyticsSession> analyticsSessions) {
+		attempts.incrementAndGet();
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		boolean fail;
+		synchronized (random) {
+			fail = failing || (failureRate > 0 && random.nextDouble() < failureRate);
+		}
+		if (fail) {
+			failures.incrementAndGet();
+			throw new IllegalStateException("Injected gateway failure");
+		}
+		synchronized (received) {
+			received.addAll(analyticsSessions);
+			while (received.size() > capacity) {
+				received.remove(0);
+			}
+		}
+	}
+
+	/**
+	 * @return the reports received so far, oldest first, up to the capacity.
+	 */
+	public List<AnalyticsSession> getReceived() {
+		synchronized (received) {
+			return new ArrayList<AnalyticsSession>(received);
+		}
+	}
+
+	public void clear() {
+		synchronized (received) {
+			received.clear();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	public boolean isFailing() {
+		return failing;
+	}
+
+	/**
+	 * Makes every delivery fail until reset, to simulate an outage.
+	 */
+	public void setFailing(boolean failing) {
+		this.failing = failing;
+	}
+
+	public double getFailureRate() {
+		return failureRate;
+	}
+
+	/**
+	 * @param failureRate the probability, between 0 and 1, that a delivery fails.
+	 */
+	public void setFailureRate(double failureRate) {
+		this.failureRate = failureRate;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @param latency ms every delivery takes, to simulate a slow backend.
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getAttemptCount() {
+		return attempts.get();
+	}
+
+	public long getFailureCount() {
+		return failures.get();
+	}
+}
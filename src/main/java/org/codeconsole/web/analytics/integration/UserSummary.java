@@ -0,0 +1,71 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact projection of a principal: the user name and role names only.
+ * Cheap to compare and to replicate, unlike most full principal objects.
+ */
+public final class UserSummary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String username;
+	private final List<String> roles;
+
+	public UserSummary(String username, Collection<String> roles) {
+		this.username = username;
+		List<String> sorted = new ArrayList<String>(roles);
+		Collections.sort(sorted);
+		this.roles = Collections.unmodifiableList(sorted);
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return the role names, sorted.
+	 */
+	public List<String> getRoles() {
+		return roles;
+	}
+
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof UserSummary)) {
+			return false;
+		}
+		UserSummary summary = (UserSummary) other;
+		return (username == null? summary.username == null : username.equals(summary.username)) && roles.equals(summary.roles);
+	}
+
+	public int hashCode() {
+		return (username == null? 0 : username.hashCode()) * 31 + roles.hashCode();
+	}
+
+	public String toString() {
+		return username + " " + roles;
+	}
+}
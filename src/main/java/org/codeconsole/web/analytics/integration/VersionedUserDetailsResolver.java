@@ -0,0 +1,35 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.integration;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * {@link UserDetailsResolver} that can tell cheaply whether the user details
+ * changed.  The filter keeps the version it last resolved per session and
+ * only calls {@link #getUserDetails(HttpServletRequest)}, and compares the
+ * result with the stored details, when the version is not the same instance.
+ */
+public interface VersionedUserDetailsResolver extends UserDetailsResolver {
+
+	/**
+	 * @return an object that is the same instance for as long as the user
+	 * details stay the same, e.g. the current authentication, or
+	 * <code>null</code> if the details should always be resolved.
+	 */
+	Object getVersion(HttpServletRequest request);
+}
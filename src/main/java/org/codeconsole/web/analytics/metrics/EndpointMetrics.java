@@ -0,0 +1,108 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.metrics;
+
+/**
+ * Request counters by method and status class, payload sizes and a latency
+ * histogram for one endpoint.
+ */
+public class EndpointMetrics {
+
+	public static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "OTHER" };
+	public static final String[] STATUS_CLASSES = { "other", "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+	private final String endpoint;
+	// request counts by method and status class, followed by the payload sizes
+	private static final int REQUEST_BYTES = METHODS.length * STATUS_CLASSES.length;
+	private static final int RESPONSE_BYTES = REQUEST_BYTES + 1;
+	private static final int MAX_RESPONSE_BYTES = REQUEST_BYTES + 2;
+
+	private final StripedLongArray counts = new StripedLongArray(REQUEST_BYTES + 3);
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	public EndpointMetrics(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	static int methodIndex(String method) {
+		if (method != null) {
+			for (int i = 0; i < METHODS.length - 1; i++) {
+				if (METHODS[i].equals(method)) {
+					return i;
+				}
+			}
+		}
+		return METHODS.length - 1;
+	}
+
+	static int statusClassIndex(int status) {
+		int statusClass = status / 100;
+		return statusClass >= 1 && statusClass <= 5? statusClass : 0;
+	}
+
+	/**
+	 * @param requestBytes size of the request body, or -1 if not known.
+	 * @param responseBytes size of the response body, or -1 if not known.
+	 */
+	public void record(String method, int status, long micros, long requestBytes, long responseBytes) {
+		counts.record(methodIndex(method) * STATUS_CLASSES.length + statusClassIndex(status),
+				RESPONSE_BYTES, MAX_RESPONSE_BYTES, Math.max(0, responseBytes));
+		if (requestBytes > 0) {
+			counts.add(REQUEST_BYTES, requestBytes);
+		}
+		latency.record(micros);
+	}
+
+	/**
+	 * @return request counts indexed by {@link #METHODS} and then
+	 * {@link #STATUS_CLASSES}.
+	 */
+	public long[][] getCounts() {
+		long[] sums = counts.sums();
+		long[][] result = new long[METHODS.length][STATUS_CLASSES.length];
+		for (int i = 0; i < METHODS.length; i++) {
+			System.arraycopy(sums, i * STATUS_CLASSES.length, result[i], 0, STATUS_CLASSES.length);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the total size of all request bodies in bytes.
+	 */
+	public long getRequestBytes() {
+		return counts.sum(REQUEST_BYTES);
+	}
+
+	/**
+	 * @return the total size of all response bodies in bytes.
+	 */
+	public long getResponseBytes() {
+		return counts.sum(RESPONSE_BYTES);
+	}
+
+	public long getMaxResponseBytes() {
+		return counts.max(MAX_RESPONSE_BYTES);
+	}
+
+	public LatencyHistogram.Snapshot getLatency() {
+		return latency.snapshot();
+	}
+}
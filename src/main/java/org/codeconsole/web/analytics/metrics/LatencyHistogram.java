@@ -0,0 +1,146 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.metrics;
+
+/**
+ * Lock-free log-linear histogram of latencies in microseconds.  Each power
+ * of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so
+ * percentiles are accurate to within about 12%.  Buckets are kept in a
+ * {@link StripedLongArray} so that concurrent request threads rarely
+ * contend on the same counters.
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values up to 2^36 us (about 19 hours) are tracked, larger ones are clamped. */
+	static final int MAX_EXPONENT = 36;
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	// slots past the buckets: sum and maximum of the recorded values
+	private static final int SUM = BUCKETS;
+	private static final int MAX = BUCKETS + 1;
+
+	private final StripedLongArray values;
+
+	public LatencyHistogram() {
+		this(StripedLongArray.defaultStripes());
+	}
+
+	public LatencyHistogram(int stripes) {
+		values = new StripedLongArray(BUCKETS + 2, stripes);
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the highest value that falls into bucket <code>index</code>.
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		values.record(bucketIndex(micros), SUM, MAX, micros);
+	}
+
+	/**
+	 * @return a copy of the histogram for computing percentiles.
+	 */
+	public Snapshot snapshot() {
+		long[] sums = values.sums();
+		long[] counts = new long[BUCKETS];
+		System.arraycopy(sums, 0, counts, 0, BUCKETS);
+		return new Snapshot(counts, sums[SUM], values.max(MAX));
+	}
+
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long sum, long max) {
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the sum of all recorded values in microseconds.
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return the upper bound of the bucket holding the quantile, in
+		 * microseconds, capped at the maximum recorded value.
+		 */
+		public long getValueAtQuantile(double quantile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(bucketUpperBound(i), max);
+				}
+			}
+			return max;
+		}
+	}
+}
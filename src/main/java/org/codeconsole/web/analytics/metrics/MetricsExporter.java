@@ -0,0 +1,263 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import org.codeconsole.web.analytics.ReportRenderer;
+
+/**
+ * Writes the contents of a {@link MetricsRegistry} as JSON or in the
+ * Prometheus text exposition format.  Latencies are reported in
+ * microseconds in JSON and in seconds for Prometheus.
+ */
+public class MetricsExporter {
+
+	public enum Format {
+		JSON("application/json"), PROMETHEUS("text/plain; version=0.0.4");
+
+		private final String contentType;
+
+		private Format(String contentType) {
+			this.contentType = contentType;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+	}
+
+	static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	private final String prefix;
+
+	public MetricsExporter() {
+		this("analytics");
+	}
+
+	/**
+	 * @param prefix prepended to the Prometheus metric names.
+	 */
+	public MetricsExporter(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public void export(MetricsRegistry registry, Writer out, Format format) throws IOException {
+		if (format == Format.PROMETHEUS) {
+			writePrometheus(registry, out);
+		} else {
+			writeJson(registry, out);
+		}
+		out.flush();
+	}
+
+	private void writeJson(MetricsRegistry registry, Writer out) throws IOException {
+		out.write("{\"startTime\":");
+		out.write(Long.toString(registry.getStartTime()));
+		out.write(",\"unit\":\"us\",\"all\":");
+		writeJson(registry.getAll(), out);
+		out.write(",\"endpoints\":[");
+		boolean first = true;
+		for (EndpointMetrics endpoint : registry.getEndpoints()) {
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			writeJson(endpoint, out);
+		}
+		out.write("],\"gauges\":{");
+		first = true;
+		for (Map.Entry<String, Gauge> gauge : registry.getGauges().entrySet()) {
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			ReportRenderer.writeJson(gauge.getKey(), out);
+			out.write(':');
+			out.write(Long.toString(gauge.getValue().getValue()));
+		}
+		out.write("}}");
+	}
+
+	private void writeJson(EndpointMetrics endpoint, Writer out) throws IOException {
+		LatencyHistogram.Snapshot latency = endpoint.getLatency();
+		out.write("{\"endpoint\":");
+		ReportRenderer.writeJson(endpoint.getEndpoint(), out);
+		out.write(",\"count\":");
+		out.write(Long.toString(latency.getCount()));
+		out.write(",\"mean\":");
+		out.write(Long.toString(Math.round(latency.getMean())));
+		for (int i = 0; i < QUANTILES.length; i++) {
+			out.write(",\"");
+			out.write(QUANTILE_NAMES[i]);
+			out.write("\":");
+			out.write(Long.toString(latency.getValueAtQuantile(QUANTILES[i])));
+		}
+		out.write(",\"max\":");
+		out.write(Long.toString(latency.getMax()));
+		out.write(",\"requestBytes\":");
+		out.write(Long.toString(endpoint.getRequestBytes()));
+		out.write(",\"responseBytes\":");
+		out.write(Long.toString(endpoint.getResponseBytes()));
+		out.write(",\"maxResponseBytes\":");
+		out.write(Long.toString(endpoint.getMaxResponseBytes()));
+		out.write(",\"requests\":{");
+		long[][] counts = endpoint.getCounts();
+		boolean firstMethod = true;
+		for (int m = 0; m < counts.length; m++) {
+			if (isEmpty(counts[m])) {
+				continue;
+			}
+			if (!firstMethod) {
+				out.write(',');
+			}
+			firstMethod = false;
+			out.write('"');
+			out.write(EndpointMetrics.METHODS[m]);
+			out.write("\":{");
+			boolean firstStatus = true;
+			for (int s = 0; s < counts[m].length; s++) {
+				if (counts[m][s] == 0) {
+					continue;
+				}
+				if (!firstStatus) {
+					out.write(',');
+				}
+				firstStatus = false;
+				out.write('"');
+				out.write(EndpointMetrics.STATUS_CLASSES[s]);
+				out.write("\":");
+				out.write(Long.toString(counts[m][s]));
+			}
+			out.write('}');
+		}
+		out.write("}}");
+	}
+
+	private static boolean isEmpty(long[] counts) {
+		for (long count : counts) {
+			if (count != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void writePrometheus(MetricsRegistry registry, Writer out) throws IOException {
+		List<EndpointMetrics> endpoints = registry.getEndpoints();
+
+		String requests = prefix + "_requests_total";
+		out.write("# HELP " + requests + " Requests handled by endpoint, method and status class.\n");
+		out.write("# TYPE " + requests + " counter\n");
+		for (EndpointMetrics endpoint : endpoints) {
+			long[][] counts = endpoint.getCounts();
+			for (int m = 0; m < counts.length; m++) {
+				for (int s = 0; s < counts[m].length; s++) {
+					if (counts[m][s] == 0) {
+						continue;
+					}
+					out.write(requests);
+					out.write("{endpoint=");
+					writeLabel(endpoint.getEndpoint(), out);
+					out.write(",method=\"");
+					out.write(EndpointMetrics.METHODS[m]);
+					out.write("\",status=\"");
+					out.write(EndpointMetrics.STATUS_CLASSES[s]);
+					out.write("\"} ");
+					out.write(Long.toString(counts[m][s]));
+					out.write('\n');
+				}
+			}
+		}
+
+		writeCounter(prefix + "_request_bytes_total", "Request body bytes received by endpoint.", endpoints, false, out);
+		writeCounter(prefix + "_response_bytes_total", "Response body bytes sent by endpoint.", endpoints, true, out);
+
+		String duration = prefix + "_request_duration_seconds";
+		out.write("# HELP " + duration + " Time taken to handle requests by endpoint.\n");
+		out.write("# TYPE " + duration + " summary\n");
+		for (EndpointMetrics endpoint : endpoints) {
+			LatencyHistogram.Snapshot latency = endpoint.getLatency();
+			for (double quantile : QUANTILES) {
+				out.write(duration);
+				out.write("{endpoint=");
+				writeLabel(endpoint.getEndpoint(), out);
+				out.write(",quantile=\"");
+				out.write(Double.toString(quantile));
+				out.write("\"} ");
+				out.write(seconds(latency.getValueAtQuantile(quantile)));
+				out.write('\n');
+			}
+			out.write(duration);
+			out.write("_sum{endpoint=");
+			writeLabel(endpoint.getEndpoint(), out);
+			out.write("} ");
+			out.write(seconds(latency.getSum()));
+			out.write('\n');
+			out.write(duration);
+			out.write("_count{endpoint=");
+			writeLabel(endpoint.getEndpoint(), out);
+			out.write("} ");
+			out.write(Long.toString(latency.getCount()));
+			out.write('\n');
+		}
+
+		for (Map.Entry<String, Gauge> gauge : registry.getGauges().entrySet()) {
+			String name = prefix + "_" + gauge.getKey();
+			out.write("# HELP " + name + " " + registry.getGaugeHelp(gauge.getKey()) + "\n");
+			out.write("# TYPE " + name + " gauge\n");
+			out.write(name + " " + gauge.getValue().getValue() + "\n");
+		}
+	}
+
+	private void writeCounter(String name, String help, List<EndpointMetrics> endpoints, boolean response, Writer out) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " counter\n");
+		for (EndpointMetrics endpoint : endpoints) {
+			out.write(name);
+			out.write("{endpoint=");
+			writeLabel(endpoint.getEndpoint(), out);
+			out.write("} ");
+			out.write(Long.toString(response? endpoint.getResponseBytes() : endpoint.getRequestBytes()));
+			out.write('\n');
+		}
+	}
+
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1000000.0);
+	}
+
+	private static void writeLabel(String value, Writer out) throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				out.write('\\');
+				out.write(c);
+			} else if (c == '\n') {
+				out.write("\\n");
+			} else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+}
@@ -0,0 +1,139 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application wide request metrics, kept per endpoint and for all requests
+ * combined.  Unlike the session history these survive the session and
+ * answer questions like "what is the 99th percentile of /checkout".  The
+ * number of endpoints is capped; requests to further endpoints are counted
+ * under {@link #OVERFLOW_ENDPOINT}.
+ */
+public class MetricsRegistry {
+
+	public static final int DEFAULT_MAX_ENDPOINTS = 500;
+	public static final String OVERFLOW_ENDPOINT = "_other";
+	public static final String ALL_ENDPOINTS = "_all";
+
+	private final int maxEndpoints;
+	private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+	private final AtomicInteger endpointCount = new AtomicInteger();
+	private final EndpointMetrics overflow = new EndpointMetrics(OVERFLOW_ENDPOINT);
+	private final EndpointMetrics all = new EndpointMetrics(ALL_ENDPOINTS);
+	private final long startTime = System.currentTimeMillis();
+	private final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private final Map<String, String> gaugeHelp = new ConcurrentHashMap<String, String>();
+
+	public MetricsRegistry() {
+		this(DEFAULT_MAX_ENDPOINTS);
+	}
+
+	public MetricsRegistry(int maxEndpoints) {
+		this.maxEndpoints = maxEndpoints;
+	}
+
+	/**
+	 * @param micros the time taken to handle the request in microseconds.
+	 * @param requestBytes size of the request body, or -1 if not known.
+	 * @param responseBytes size of the response body, or -1 if not known.
+	 */
+	public void record(String endpoint, String method, int status, long micros, long requestBytes, long responseBytes) {
+		getEndpoint(endpoint).record(method, status, micros, requestBytes, responseBytes);
+		all.record(method, status, micros, requestBytes, responseBytes);
+	}
+
+	private EndpointMetrics getEndpoint(String endpoint) {
+		EndpointMetrics metrics = endpoints.get(endpoint);
+		if (metrics == null) {
+			if (endpointCount.get() >= maxEndpoints) {
+				return overflow;
+			}
+			EndpointMetrics created = new EndpointMetrics(endpoint);
+			metrics = endpoints.putIfAbsent(endpoint, created);
+			if (metrics == null) {
+				metrics = created;
+				if (endpointCount.incrementAndGet() > maxEndpoints) {
+					// lost the race for the last slot; the few recorded values stay
+					endpoints.remove(endpoint);
+					endpointCount.decrementAndGet();
+					return overflow;
+				}
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return the tracked endpoints sorted by name, followed by the overflow
+	 * bucket if it was used.
+	 */
+	public List<EndpointMetrics> getEndpoints() {
+		List<EndpointMetrics> result = new ArrayList<EndpointMetrics>(endpoints.values());
+		Collections.sort(result, new Comparator<EndpointMetrics>() {
+			public int compare(EndpointMetrics a, EndpointMetrics b) {
+				return a.getEndpoint().compareTo(b.getEndpoint());
+			}
+		});
+		if (overflow.getLatency().getCount() > 0) {
+			result.add(overflow);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds a value sampled on export, such as memory usage.
+	 * @param name metric name without the exporter's prefix, e.g.
+	 * <code>history_retained_bytes</code>
+	 */
+	public void registerGauge(String name, String help, Gauge gauge) {
+		gaugeHelp.put(name, help);
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return the gauges sorted by name.
+	 */
+	public Map<String, Gauge> getGauges() {
+		return new TreeMap<String, Gauge>(gauges);
+	}
+
+	public String getGaugeHelp(String name) {
+		return gaugeHelp.get(name);
+	}
+
+	public EndpointMetrics getAll() {
+		return all;
+	}
+
+	public int getMaxEndpoints() {
+		return maxEndpoints;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+}
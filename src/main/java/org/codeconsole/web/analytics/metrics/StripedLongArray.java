@@ -0,0 +1,125 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Array of longs split over several stripes so that concurrent writers
+ * rarely update the same cache line.  The stripe is picked from the id of
+ * the current thread and only allocated the first time a thread maps to it,
+ * so rarely used instances stay at the size of a single stripe.  Reads sum
+ * (or take the maximum of) all stripes and are not atomic across slots.
+ */
+public class StripedLongArray {
+
+	private final AtomicReferenceArray<AtomicLongArray> stripes;
+	private final int mask;
+	private final int length;
+
+	public StripedLongArray(int length) {
+		this(length, defaultStripes());
+	}
+
+	public StripedLongArray(int length, int stripeCount) {
+		int size = 1;
+		while (size < stripeCount) {
+			size <<= 1;
+		}
+		this.stripes = new AtomicReferenceArray<AtomicLongArray>(size);
+		this.mask = size - 1;
+		this.length = length;
+	}
+
+	public static int defaultStripes() {
+		return Math.min(16, Runtime.getRuntime().availableProcessors());
+	}
+
+	private AtomicLongArray stripe() {
+		int index = (int) Thread.currentThread().getId() & mask;
+		AtomicLongArray stripe = stripes.get(index);
+		if (stripe == null) {
+			stripes.compareAndSet(index, null, new AtomicLongArray(length));
+			stripe = stripes.get(index);
+		}
+		return stripe;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void increment(int index) {
+		stripe().incrementAndGet(index);
+	}
+
+	public void add(int index, long delta) {
+		stripe().addAndGet(index, delta);
+	}
+
+	/**
+	 * Increments <code>index</code>, adds <code>value</code> to
+	 * <code>sumIndex</code> and raises <code>maxIndex</code> to
+	 * <code>value</code> on a single stripe.
+	 */
+	public void record(int index, int sumIndex, int maxIndex, long value) {
+		AtomicLongArray stripe = stripe();
+		stripe.incrementAndGet(index);
+		stripe.addAndGet(sumIndex, value);
+		long max;
+		while (value > (max = stripe.get(maxIndex)) && !stripe.compareAndSet(maxIndex, max, value)) { }
+	}
+
+	public long sum(int index) {
+		long sum = 0;
+		for (int i = 0; i < stripes.length(); i++) {
+			AtomicLongArray stripe = stripes.get(i);
+			if (stripe != null) {
+				sum += stripe.get(index);
+			}
+		}
+		return sum;
+	}
+
+	public long max(int index) {
+		long max = 0;
+		for (int i = 0; i < stripes.length(); i++) {
+			AtomicLongArray stripe = stripes.get(i);
+			if (stripe != null) {
+				max = Math.max(max, stripe.get(index));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return the per slot sums of all stripes.
+	 */
+	public long[] sums() {
+		long[] sums = new long[length];
+		for (int i = 0; i < stripes.length(); i++) {
+			AtomicLongArray stripe = stripes.get(i);
+			if (stripe != null) {
+				for (int j = 0; j < length; j++) {
+					sums[j] += stripe.get(j);
+				}
+			}
+		}
+		return sums;
+	}
+}
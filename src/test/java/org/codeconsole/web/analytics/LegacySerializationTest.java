@@ -0,0 +1,129 @@
+/* Copyright 2010 Scott Murphy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott Murphy
+ */
+package org.codeconsole.web.analytics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Reads <code>legacy-session.ser</code>, a session serialized by the classes
+ * as they were before the compact format, with default serialization.  It
+ * was written by the original <code>AnalyticsSession</code>,
+ * <code>AnalyticsHttpRequest</code> and <code>WrappedException</code> with
+ * the times below set through reflection, so sessions persisted or
+ * replicated by older versions must keep reading back as asserted here.
+ */
+public class LegacySerializationTest {
+
+	private static final String STACK_TRACE = "java.lang.IllegalStateException: Order not found\n" +
+			"\tat com.example.OrderService.findOrder(OrderService.java:42)\n" +
+			"\tat com.example.OrderController.create(OrderController.java:17)\n";
+
+	@Test
+	public void readsLegacySession() throws Exception {
+		assertLegacyContent(readLegacySession());
+	}
+
+	@Test
+	public void keepsLegacyContentInCompactFormat() throws Exception {
+		AnalyticsSession session = readLegacySession();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(session);
+		out.close();
+		assertLegacyContent(read(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	private static AnalyticsSession readLegacySession() throws IOException, ClassNotFoundException {
+		InputStream in = LegacySerializationTest.class.getResourceAsStream("legacy-session.ser");
+		assertNotNull("legacy-session.ser", in);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static AnalyticsSession read(InputStream bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(bytes);
+		try {
+			return (AnalyticsSession) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void assertLegacyContent(AnalyticsSession session) {
+		assertEquals(1300000000000L, session.getCreationTime());
+		assertEquals("http://localhost/", session.getReferer());
+		assertEquals("127.0.0.1", session.getIp());
+		assertEquals(5, session.getMaxHistorySize());
+		assertEquals("alice", session.getUserDetails());
+		assertEquals("dark", session.getProperties().get("theme"));
+
+		List<AnalyticsHttpRequest> history = session.getHistorySnapshot();
+		assertEquals(2, history.size());
+
+		AnalyticsHttpRequest first = history.get(0);
+		assertEquals("GET", first.getMethod());
+		assertEquals("http://localhost/orders/1/items", first.getUrl());
+		assertEquals("page=2", first.getQueryString());
+		assertEquals(1300000001000L, first.getRequestTimeMillis());
+		assertEquals(1300000001250L, first.getCompletionTime());
+		assertEquals(200, first.getStatus());
+		assertEquals("r1234", first.getSourceRevision());
+		assertEquals(2, first.getParameterMap().size());
+		assertArrayEquals(new String[] { "open" }, first.getParameterMap().get("filter"));
+		assertArrayEquals(new String[] { "a", "b" }, first.getParameterMap().get("tag"));
+		assertNull(first.getWrappedException());
+
+		AnalyticsHttpRequest second = history.get(1);
+		assertEquals("POST", second.getMethod());
+		assertEquals("http://localhost/orders", second.getUrl());
+		assertNull(second.getQueryString());
+		assertEquals(1300000002000L, second.getRequestTimeMillis());
+		assertEquals(1300000002500L, second.getCompletionTime());
+		assertEquals(500, second.getStatus());
+		assertEquals(0, second.getParameterMap().size());
+
+		WrappedException exception = second.getWrappedException();
+		assertNotNull(exception);
+		assertEquals("java.lang.IllegalStateException", exception.getExceptionType());
+		assertEquals("java.lang.IllegalStateException: Order not found", exception.getDescription());
+		assertEquals("OrderService.java", exception.getFileName());
+		assertEquals("findOrder", exception.getMethodName());
+		assertEquals(Integer.valueOf(42), exception.getLineNumber());
+		assertEquals(1300000002400L, exception.getTimeStamp().getTime());
+		assertEquals(STACK_TRACE, exception.getStackTrace());
+
+		assertSame(second, session.getLastRequest());
+		assertSame(second, session.getLastException());
+	}
+}